@@ -78,6 +78,8 @@ public class TvService extends TvInputService implements
         public void updateServiceList(ServiceListUpdateData serviceListUpdateData) {
             mLog.d("[updateServiceList][service list update date: "
                     + serviceListUpdateData + "]");
+            // Affected services are found by comparing MW master list with TvProvider
+            mDtvManager.getChannelManager().onServiceListUpdated();
         }
     };
     private BroadcastReceiver mContentRatingReceiver = new BroadcastReceiver() {
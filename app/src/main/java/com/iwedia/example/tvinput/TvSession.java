@@ -61,16 +61,10 @@ class TvSession extends TvInputService.Session {
     private boolean mIsSubtitleEnabled;
     /** DvbManager for accessing MW API */
     private DtvManager mDtvManager;
-    /** Subtitle track manager */
-    private SubtitleManager mSubtitleManager;
-    /** Audio track manager */
-    private AudioManager mAudioManager;
     /** Application context */
     private Context mContext;
     /** Listener for session events */
     private ITvSession mSessionListener;
-    /** Channel manager object */
-    private ChannelManager mChannelManager;
     /** Input ID for TV session */
     private String mInputID;
     /** Android TIF manager */
@@ -119,10 +113,9 @@ class TvSession extends TvInputService.Session {
         mContext = context;
         mIsSubtitleEnabled = ((CaptioningManager) mContext
                 .getSystemService(Context.CAPTIONING_SERVICE)).isEnabled();
+        // Managers are resolved on use, so session creation does not wait for DtvManager
+        // initialization to finish
         mDtvManager = DtvManager.getInstance();
-        mChannelManager = mDtvManager.getChannelManager();
-        mSubtitleManager = mDtvManager.getSubtitleManager();
-        mAudioManager = mDtvManager.getAudioManager();
     }
 
     @Override
@@ -211,7 +204,15 @@ class TvSession extends TvInputService.Session {
         // reset audio and subtitle tracks
         resetTracks();
         long id = ContentUris.parseId(channelUri);
-        mCurrentChannel = mChannelManager.getChannelById(id);
+        ChannelManager channelManager = mDtvManager.getChannelManager();
+        mCurrentChannel = channelManager.getChannelById(id);
+        if (mCurrentChannel == null
+                && !mDtvManager.getReadiness(DtvManager.STARTUP_CHANNELS_VALIDATED).isDone()) {
+            // Channel is not in channel cache, wait for channels from TvProvider
+            mDtvManager.awaitStartupStep(DtvManager.STARTUP_CHANNELS_VALIDATED);
+            mCurrentChannel = channelManager.getChannelById(id);
+        }
+        mDtvManager.onTuned();
         if (mCurrentChannel == null) {
             mLog.d("[onTune][channel not fount][uri: " + channelUri + "]");
             mContentIsBlocked = false;
@@ -238,9 +239,10 @@ class TvSession extends TvInputService.Session {
                 }
                 try {
                     if (trackId == null) {
-                        mSubtitleManager.hideSubtitles();
+                        mDtvManager.getSubtitleManager().hideSubtitles();
                     } else {
-                        mSubtitleManager.showSubtitles(mTracksIndices.get(trackId));
+                        mDtvManager.getSubtitleManager().showSubtitles(
+                                mTracksIndices.get(trackId));
                     }
                 } catch (InternalException e) {
                     e.printStackTrace();
@@ -249,7 +251,7 @@ class TvSession extends TvInputService.Session {
                 return true;
             case TvTrackInfo.TYPE_AUDIO:
                 try {
-                    mAudioManager.setAudioTrack(mTracksIndices.get(trackId));
+                    mDtvManager.getAudioManager().setAudioTrack(mTracksIndices.get(trackId));
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -279,7 +281,17 @@ class TvSession extends TvInputService.Session {
      * if channel is not blocked or stop playback otherwise.
      */
     void checkContentRating() {
-        final RatingInfo info = RatingInfo.buildRatingInfo(mContext, mCurrentChannel);
+        RatingInfo info = null;
+        if (mCurrentChannel != null
+                && mDtvManager.getReadiness(DtvManager.STARTUP_EPG).isDone()) {
+            // Running event is taken from now/next cache, ratings of stored programs are used
+            // only if it is not known yet
+            info = mDtvManager.getEpgManager().getRunningEventRating(
+                    mCurrentChannel.getServiceId());
+        }
+        if (info == null) {
+            info = RatingInfo.buildRatingInfo(mContext, mCurrentChannel);
+        }
         mContentIsBlocked = info != null && info.rating != null
                 && mTvManager.isParentalControlsEnabled()
                 && mTvManager.isRatingBlocked(info.rating);
@@ -308,9 +320,10 @@ class TvSession extends TvInputService.Session {
         mTracksIndices.clear();
         if (mCurrentChannel != null) {
             // Audio tracks
-            int audioTrackCount = mAudioManager.getTrackCount();
+            AudioManager audioManager = mDtvManager.getAudioManager();
+            int audioTrackCount = audioManager.getTrackCount();
             for (int trackIndex = 0; trackIndex < audioTrackCount; trackIndex++) {
-                AudioTrack audioTrack = mAudioManager.getTrack(trackIndex);
+                AudioTrack audioTrack = audioManager.getTrack(trackIndex);
                 String trackId = mTracks.size()
                         + "_" + audioTrack.getName()
                         + "_" + audioTrack.getLanguage();
@@ -324,9 +337,10 @@ class TvSession extends TvInputService.Session {
                 trackIndex++;
             }
             // Subtitle tracks
-            int subtitlesTrackCount = mSubtitleManager.getTrackCount();
+            SubtitleManager subtitleManager = mDtvManager.getSubtitleManager();
+            int subtitlesTrackCount = subtitleManager.getTrackCount();
             for (int trackIndex = 0; trackIndex < subtitlesTrackCount; trackIndex++) {
-                SubtitleTrack subtitleTrack = mSubtitleManager.getTrack(trackIndex);
+                SubtitleTrack subtitleTrack = subtitleManager.getTrack(trackIndex);
                 String trackId = mTracks.size()
                         + "_" + subtitleTrack.getName()
                         + "_" + subtitleTrack.getLanguage();
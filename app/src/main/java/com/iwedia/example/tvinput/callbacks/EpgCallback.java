@@ -45,6 +45,7 @@ public class EpgCallback implements IEpgCallback {
     public void scEventChanged(int filterID, int serviceIndex) {
         mLog.d("[epg_callback][scEventChanged][filter ID: " + filterID + "][service index: "
                 + serviceIndex + "]");
+        mDvbManager.onEpgEventsChanged(serviceIndex);
     }
 
     /**
@@ -58,7 +59,7 @@ public class EpgCallback implements IEpgCallback {
         mLog.d("[epg_callback][scAcquisitionFinished][filter ID" + filterID + "][service index: "
                 + serviceIndex
                 + "]");
-        mDvbManager.updateEpgList();
+        mDvbManager.updateEpgList(serviceIndex);
     }
 
     /**
@@ -71,6 +72,7 @@ public class EpgCallback implements IEpgCallback {
     public void pfEventChanged(int filterID, int serviceIndex) {
         mLog.d("[epg_callback][pfEventChanged][filder ID" + filterID + "][service index"
                 + serviceIndex + "]");
+        mDvbManager.onEpgEventsChanged(serviceIndex);
     }
 
     /**
@@ -91,6 +93,6 @@ public class EpgCallback implements IEpgCallback {
     public void tdtChanged(int filterID, int serviceIndex) {
         mLog.d("[epg_callback][tdtChanged][filder ID" + filterID + "][service index: "
                 + serviceIndex + "]");
-        mDvbManager.getEpgManager().prepareGetEpgEvents();
+        mDvbManager.getEpgManager().onTdtChanged();
     }
 }
@@ -14,6 +14,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 import android.media.tv.TvContract.Channels;
 import android.net.Uri;
+import android.text.TextUtils;
 
 import com.iwedia.dtv.service.ServiceType;
 import com.iwedia.dtv.service.SourceType;
@@ -73,25 +74,73 @@ public class ChannelDescriptor {
         mServiceType = ServiceType.DIG_TV;
     }
 
+    /**
+     * Constructor with all channel data, used when restoring channels from cache
+     *
+     * @param id            Channel ID
+     * @param displayNumber Channel number
+     * @param name          Channel name
+     * @param url           Channel url
+     * @param serviceId     ID for channels playing from MW
+     * @param type          Channel descriptor type
+     * @param serviceType   Type of service
+     */
+    public ChannelDescriptor(long id, String displayNumber, String name, String url,
+            int serviceId, SourceType type, ServiceType serviceType) {
+        mId = id;
+        mDisplayNumber = displayNumber;
+        mName = name;
+        mUrl = url;
+        mServiceId = serviceId;
+        mType = type;
+        mServiceType = serviceType;
+    }
+
     public ChannelDescriptor(Cursor cursor) {
-        mId = cursor.getInt(cursor.getColumnIndex(Channels._ID));
-        mDisplayNumber = cursor.getString(cursor
-                .getColumnIndex(Channels.COLUMN_DISPLAY_NUMBER));
-        mType = convertTifTypeToSourceType(cursor.getString(cursor
-                .getColumnIndex(Channels.COLUMN_TYPE)));
-        mServiceType = convertTifServiceTypeToServiceType(cursor.getString(cursor
-                .getColumnIndex(Channels.COLUMN_SERVICE_TYPE)));
+        this(cursor, new CursorColumns(cursor));
+    }
+
+    /**
+     * Constructor for reading many rows of the same cursor
+     *
+     * @param cursor  Cursor positioned on channel row
+     * @param columns Column indexes resolved once for the cursor
+     */
+    public ChannelDescriptor(Cursor cursor, CursorColumns columns) {
+        mId = cursor.getLong(columns.mId);
+        mDisplayNumber = cursor.getString(columns.mDisplayNumber);
+        mType = convertTifTypeToSourceType(cursor.getString(columns.mType));
+        mServiceType = convertTifServiceTypeToServiceType(cursor.getString(columns.mServiceType));
         if (mType == SourceType.IP) {
-            mUrl = cursor.getString(cursor
-                    .getColumnIndex(Channels.COLUMN_DISPLAY_NAME));
+            mUrl = cursor.getString(columns.mDisplayName);
             mName = "";
         } else {
-            mName = cursor.getString(cursor
-                    .getColumnIndex(Channels.COLUMN_DISPLAY_NAME));
+            mName = cursor.getString(columns.mDisplayName);
             mUrl = "";
         }
-        mServiceId = cursor.getInt(cursor
-                .getColumnIndex(Channels.COLUMN_SERVICE_ID));
+        mServiceId = cursor.getInt(columns.mServiceId);
+    }
+
+    /**
+     * Indexes of channel columns in a cursor
+     */
+    public static final class CursorColumns {
+
+        private final int mId;
+        private final int mDisplayNumber;
+        private final int mDisplayName;
+        private final int mType;
+        private final int mServiceType;
+        private final int mServiceId;
+
+        public CursorColumns(Cursor cursor) {
+            mId = cursor.getColumnIndex(Channels._ID);
+            mDisplayNumber = cursor.getColumnIndex(Channels.COLUMN_DISPLAY_NUMBER);
+            mDisplayName = cursor.getColumnIndex(Channels.COLUMN_DISPLAY_NAME);
+            mType = cursor.getColumnIndex(Channels.COLUMN_TYPE);
+            mServiceType = cursor.getColumnIndex(Channels.COLUMN_SERVICE_TYPE);
+            mServiceId = cursor.getColumnIndex(Channels.COLUMN_SERVICE_ID);
+        }
     }
 
     public ContentValues getContentValues(String inputId) {
@@ -239,6 +288,35 @@ public class ChannelDescriptor {
         return mServiceType;
     }
 
+    /**
+     * Gets the key used to match this channel against TvProvider rows during channel list
+     * synchronization. DVB channels are keyed by source type and service ID, IP channels by URL.
+     *
+     * @return Synchronization key
+     */
+    public String getSyncKey() {
+        if (mType == SourceType.IP) {
+            return mType + ":" + mUrl;
+        }
+        return mType + ":" + mServiceId;
+    }
+
+    /**
+     * Checks if given channel carries the same data as this one. Channel ID is not compared.
+     *
+     * @param other Channel to compare with
+     * @return True if TvProvider row of this channel does not need an update
+     */
+    public boolean hasSameContent(ChannelDescriptor other) {
+        return other != null
+                && mServiceId == other.mServiceId
+                && mType == other.mType
+                && mServiceType == other.mServiceType
+                && TextUtils.equals(mDisplayNumber, other.mDisplayNumber)
+                && TextUtils.equals(mName, other.mName)
+                && TextUtils.equals(mUrl, other.mUrl);
+    }
+
     @Override
     public String toString() {
         if (mType == SourceType.IP) {
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.data;
+
+import java.util.List;
+
+/**
+ * Read-only lookup tables for a channel list. Channels can be found by TvProvider row ID, by MW
+ * service ID and by display number in constant time without boxing the keys.
+ * <p>
+ * An index is built once from a complete channel list and never modified afterwards, so a new
+ * index must be built whenever the channel list changes.
+ */
+public final class ChannelIndex {
+
+    /** Channels keyed by TvProvider row ID */
+    private final Table mById;
+    /** Channels keyed by MW service ID */
+    private final Table mByServiceId;
+    /** Channels keyed by numeric value of display number */
+    private final Table mByDisplayNumber;
+
+    /**
+     * Constructor
+     *
+     * @param channels Channels to index, can be null
+     */
+    public ChannelIndex(List<ChannelDescriptor> channels) {
+        int size = channels == null ? 0 : channels.size();
+        mById = new Table(size);
+        mByServiceId = new Table(size);
+        mByDisplayNumber = new Table(size);
+        for (int i = 0; i < size; i++) {
+            ChannelDescriptor channel = channels.get(i);
+            mById.put(channel.getChannelId(), channel);
+            if (channel.getServiceId() != ChannelDescriptor.EC_NOT_AVAILABLE) {
+                mByServiceId.put(channel.getServiceId(), channel);
+            }
+            int displayNumber = parseDisplayNumber(channel.getDisplayNumber());
+            if (displayNumber != ChannelDescriptor.EC_NOT_AVAILABLE) {
+                mByDisplayNumber.put(displayNumber, channel);
+            }
+        }
+    }
+
+    /**
+     * Gets channel by TvProvider row ID
+     *
+     * @param id Channel ID
+     * @return Channel or null if not found
+     */
+    public ChannelDescriptor getById(long id) {
+        return mById.get(id);
+    }
+
+    /**
+     * Gets channel by MW service ID
+     *
+     * @param serviceId Service ID in MW master list
+     * @return Channel or null if not found
+     */
+    public ChannelDescriptor getByServiceId(int serviceId) {
+        return mByServiceId.get(serviceId);
+    }
+
+    /**
+     * Gets channel by display number
+     *
+     * @param displayNumber Numeric value of channel display number
+     * @return Channel or null if not found
+     */
+    public ChannelDescriptor getByDisplayNumber(int displayNumber) {
+        return mByDisplayNumber.get(displayNumber);
+    }
+
+    /**
+     * Converts display number in "01" format to its numeric value
+     *
+     * @param displayNumber Display number
+     * @return Numeric value or {@link ChannelDescriptor#EC_NOT_AVAILABLE} if display number is not
+     * a plain decimal number
+     */
+    public static int parseDisplayNumber(String displayNumber) {
+        if (displayNumber == null || displayNumber.isEmpty() || displayNumber.length() > 9) {
+            return ChannelDescriptor.EC_NOT_AVAILABLE;
+        }
+        int value = 0;
+        for (int i = 0; i < displayNumber.length(); i++) {
+            char c = displayNumber.charAt(i);
+            if (c < '0' || c > '9') {
+                return ChannelDescriptor.EC_NOT_AVAILABLE;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Open addressing hash table with primitive long keys. First inserted value wins for
+     * duplicated keys.
+     */
+    private static final class Table {
+
+        private final long[] mKeys;
+        private final ChannelDescriptor[] mValues;
+        private final int mMask;
+
+        Table(int expectedSize) {
+            int capacity = 2;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            mKeys = new long[capacity];
+            mValues = new ChannelDescriptor[capacity];
+            mMask = capacity - 1;
+        }
+
+        void put(long key, ChannelDescriptor value) {
+            int slot = hash(key) & mMask;
+            while (mValues[slot] != null) {
+                if (mKeys[slot] == key) {
+                    return;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            mKeys[slot] = key;
+            mValues[slot] = value;
+        }
+
+        ChannelDescriptor get(long key) {
+            int slot = hash(key) & mMask;
+            ChannelDescriptor value;
+            while ((value = mValues[slot]) != null) {
+                if (mKeys[slot] == key) {
+                    return value;
+                }
+                slot = (slot + 1) & mMask;
+            }
+            return null;
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
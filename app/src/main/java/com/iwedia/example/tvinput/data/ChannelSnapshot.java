@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable, versioned view of the channel list together with its lookup tables.
+ * <p>
+ * Snapshot is never changed after it is created, so it can be shared between threads without
+ * locking. Every change of the channel list produces a new snapshot with a higher version.
+ */
+public final class ChannelSnapshot {
+
+    /** Snapshot used before any channel list is loaded */
+    public static final ChannelSnapshot EMPTY = new ChannelSnapshot(null, 0);
+    /** Channels in channel list order */
+    private final List<ChannelDescriptor> mChannels;
+    /** Lookup tables for mChannels */
+    private final ChannelIndex mIndex;
+    /** Version of this snapshot */
+    private final int mVersion;
+
+    /**
+     * Constructor
+     *
+     * @param channels Channel list, it is copied so later changes of it are not visible
+     * @param version  Version of this snapshot
+     */
+    public ChannelSnapshot(List<ChannelDescriptor> channels, int version) {
+        mChannels = channels == null
+                ? Collections.<ChannelDescriptor> emptyList()
+                : Collections.unmodifiableList(new ArrayList<ChannelDescriptor>(channels));
+        mIndex = new ChannelIndex(mChannels);
+        mVersion = version;
+    }
+
+    /**
+     * Gets the snapshot version
+     *
+     * @return Version that is increased on every channel list change
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Gets all channels
+     *
+     * @return Unmodifiable channel list
+     */
+    public List<ChannelDescriptor> getChannels() {
+        return mChannels;
+    }
+
+    public int size() {
+        return mChannels.size();
+    }
+
+    public boolean isEmpty() {
+        return mChannels.isEmpty();
+    }
+
+    /**
+     * Gets channel by position in channel list
+     *
+     * @param position Position in channel list
+     * @return Channel or null if position is out of bounds
+     */
+    public ChannelDescriptor getChannel(int position) {
+        if (position < 0 || position >= mChannels.size()) {
+            return null;
+        }
+        return mChannels.get(position);
+    }
+
+    /**
+     * @see ChannelIndex#getById(long)
+     */
+    public ChannelDescriptor getById(long id) {
+        return mIndex.getById(id);
+    }
+
+    /**
+     * @see ChannelIndex#getByServiceId(int)
+     */
+    public ChannelDescriptor getByServiceId(int serviceId) {
+        return mIndex.getByServiceId(serviceId);
+    }
+
+    /**
+     * @see ChannelIndex#getByDisplayNumber(int)
+     */
+    public ChannelDescriptor getByDisplayNumber(int displayNumber) {
+        return mIndex.getByDisplayNumber(displayNumber);
+    }
+}
@@ -22,6 +22,8 @@ import android.os.Build;
 public final class EpgProgram {
 
     public static final long INVALID_ID = -1;
+    /** Event ID of programs not created from MW events */
+    public static final int INVALID_EVENT_ID = -1;
     private long mChannelId;
     private String mTitle;
     private long mStartTimeUtcMillis;
@@ -30,6 +32,7 @@ public final class EpgProgram {
     private String mLongDescription;
     private String mCanonicalGenres;
     private TvContentRating[] mContentRatings;
+    private int mEventId = INVALID_EVENT_ID;
 
     private EpgProgram() {
         // Do nothing.
@@ -63,6 +66,10 @@ public final class EpgProgram {
         return mContentRatings;
     }
 
+    public int getEventId() {
+        return mEventId;
+    }
+
     public String[] getCanonicalGenres() {
         if (mCanonicalGenres == null) {
             return null;
@@ -82,9 +89,36 @@ public final class EpgProgram {
         values.put(TvContract.Programs.COLUMN_CANONICAL_GENRE, mCanonicalGenres);
         values.put(TvContract.Programs.COLUMN_CONTENT_RATING,
                 contentRatingsToString(mContentRatings));
+        if (mEventId != INVALID_EVENT_ID) {
+            values.put(TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA,
+                    encodeEventId(mEventId));
+        }
         return values;
     }
 
+    /**
+     * Converts MW event ID to value of internal provider data column
+     */
+    public static byte[] encodeEventId(int eventId) {
+        return new byte[] {
+                (byte) (eventId >>> 24), (byte) (eventId >>> 16), (byte) (eventId >>> 8),
+                (byte) eventId
+        };
+    }
+
+    /**
+     * Converts value of internal provider data column to MW event ID
+     *
+     * @return Event ID or {@link #INVALID_EVENT_ID} if value does not hold one
+     */
+    public static int decodeEventId(byte[] data) {
+        if (data == null || data.length != 4) {
+            return INVALID_EVENT_ID;
+        }
+        return ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8)
+                | (data[3] & 0xFF);
+    }
+
     @Override
     public String toString() {
         return new StringBuilder()
@@ -97,6 +131,7 @@ public final class EpgProgram {
                 .append(", longDescription=").append(mLongDescription)
                 .append(", canonicalGenres=").append(mCanonicalGenres)
                 .append(", contentRatings=").append(contentRatingsToString(mContentRatings))
+                .append(", eventId=").append(mEventId)
                 .append("}")
                 .toString();
     }
@@ -112,6 +147,7 @@ public final class EpgProgram {
         mDescription = other.mDescription;
         mLongDescription = other.mLongDescription;
         mCanonicalGenres = other.mCanonicalGenres;
+        mEventId = other.mEventId;
     }
 
     public static final class Builder {
@@ -169,6 +205,11 @@ public final class EpgProgram {
             return this;
         }
 
+        public Builder setEventId(int eventId) {
+            mProgram.mEventId = eventId;
+            return this;
+        }
+
         public Builder setCanonicalGenres(String genres) {
             mProgram.mCanonicalGenres = genres;
             return this;
@@ -31,54 +31,86 @@ public class RatingInfo {
     public final TvContentRating rating;
     public final long expires;
 
-    private RatingInfo(TvContentRating rating, long expires) {
+    /** Projection for loading ratings of a channel */
+    private static final String[] PROJECTION = {
+            Programs.COLUMN_START_TIME_UTC_MILLIS,
+            Programs.COLUMN_END_TIME_UTC_MILLIS,
+            Programs.COLUMN_CONTENT_RATING
+    };
+
+    /**
+     * Constructor
+     *
+     * @param rating  Rating of the program, null if it is not rated
+     * @param expires End time of the program in UTC millis
+     */
+    public RatingInfo(TvContentRating rating, long expires) {
         this.rating = rating;
         this.expires = expires;
     }
 
+    /**
+     * Builds rating info of the program running on a channel. Ratings are looked up in
+     * {@link RatingTimeline}, the database is read only for channels it does not know yet.
+     *
+     * @param context Application context
+     * @param channel Channel
+     * @return Rating info, or null if no program is running
+     */
     public static RatingInfo buildRatingInfo(Context context, ChannelDescriptor channel) {
         if (channel == null) {
             return null;
         }
-        Uri uri = TvContract.buildProgramsUriForChannel(channel.getChannelId());
-        String time = String.valueOf(System.currentTimeMillis());
-        String selection = Programs.COLUMN_START_TIME_UTC_MILLIS + "<=? AND "
-                + Programs.COLUMN_END_TIME_UTC_MILLIS + ">?";
-        String[] args = {
-                time, time
-        };
+        RatingTimeline timeline = RatingTimeline.getInstance();
+        if (!timeline.contains(channel.getChannelId())) {
+            loadChannel(context, channel.getChannelId());
+        }
+        RatingInfo info = timeline.find(channel.getChannelId(), System.currentTimeMillis());
+        mLog.d("CRR - id=" + channel.getChannelId() + ", rating="
+                + (info == null ? null : info.rating));
+        return info;
+    }
+
+    /**
+     * Loads ratings of current and future programs of a channel into timeline
+     */
+    private static void loadChannel(Context context, long channelId) {
+        Uri uri = TvContract.buildProgramsUriForChannel(channelId);
         Cursor cursor = null;
-        //Sometimes TIF service will throw exception when trying to use selection on programs table
+        // Sometimes TIF service will throw exception when querying programs table
         try {
-            cursor = context.getContentResolver().query(uri, null, selection, args, null);
+            cursor = context.getContentResolver().query(uri, PROJECTION, null, null,
+                    Programs.COLUMN_START_TIME_UTC_MILLIS);
         } catch (Exception e) {
             e.printStackTrace();
         }
-        long eventEndTime = 0;
-        String eventRating = null;
-        mLog.d("CRR - id=" + channel.getChannelId());
-        mLog.d("CRR - time=" + time);
         if (cursor == null) {
             mLog.d("CRR - no cursor!");
-        } else {
-            mLog.d("CRR - count=" + cursor.getCount());
-            if (cursor.moveToFirst()) {
-                eventEndTime = cursor.getLong(cursor.getColumnIndex(
-                        Programs.COLUMN_END_TIME_UTC_MILLIS));
-                eventRating = cursor.getString(cursor.getColumnIndex(
-                        Programs.COLUMN_CONTENT_RATING));
-                mLog.d("CRR - event.title="
-                        + cursor.getString(cursor.getColumnIndex(Programs.COLUMN_TITLE)));
-                mLog.d("CRR - event.rating=" + eventRating);
-                mLog.d("CRR - event.endTime=" + eventEndTime);
-                return new RatingInfo(
-                        (eventRating == null)
-                                ? null
-                                : TvContentRating.unflattenFromString(eventRating),
-                        eventEndTime);
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int count = 0;
+            long[] starts = new long[cursor.getCount()];
+            long[] ends = new long[starts.length];
+            String[] ratings = new String[starts.length];
+            while (cursor.moveToNext() && count < starts.length) {
+                long end = cursor.getLong(1);
+                if (end <= now) {
+                    continue;
+                }
+                starts[count] = cursor.getLong(0);
+                ends[count] = end;
+                ratings[count] = cursor.getString(2);
+                count++;
+            }
+            if (RatingTimeline.getInstance().load(channelId, starts, ends, ratings, count)) {
+                mLog.d("CRR - loaded " + count + " programs for id=" + channelId);
+            } else {
+                mLog.d("CRR - id=" + channelId + " filled while loading, kept newer programs");
             }
+        } finally {
             cursor.close();
         }
-        return null;
     }
 }
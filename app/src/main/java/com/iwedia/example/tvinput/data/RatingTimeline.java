@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.data;
+
+import android.content.ContentValues;
+import android.media.tv.TvContentRating;
+import android.media.tv.TvContract.Programs;
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Content ratings of programs per channel, kept in sorted primitive arrays. Filled by EPG
+ * ingestion as programs are written, so the rating of the running program is found by binary
+ * search without querying TvProvider. Rating strings are stored once and referenced by code.
+ */
+public class RatingTimeline {
+
+    /** Code of programs without rating */
+    private static final int NO_RATING = -1;
+    private static final RatingTimeline sInstance = new RatingTimeline();
+    /** Timelines keyed by channel ID */
+    private final LongSparseArray<Timeline> mChannels = new LongSparseArray<Timeline>();
+    /** Flattened ratings by code */
+    private final ArrayList<String> mRatings = new ArrayList<String>();
+    /** Parsed ratings by code, filled on first use */
+    private final ArrayList<TvContentRating> mParsedRatings = new ArrayList<TvContentRating>();
+    /** Codes of flattened ratings */
+    private final HashMap<String, Integer> mRatingCodes = new HashMap<String, Integer>();
+
+    private RatingTimeline() {
+    }
+
+    /**
+     * @return Shared instance
+     */
+    public static RatingTimeline getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Checks if programs of a channel are known
+     *
+     * @param channelId Channel ID
+     * @return True if the channel was filled by ingestion or loaded from database
+     */
+    public synchronized boolean contains(long channelId) {
+        return mChannels.get(channelId) != null;
+    }
+
+    /**
+     * Replaces programs of a channel within the time span of given programs
+     *
+     * @param channelId Channel ID
+     * @param programs  Programs sorted by start time, in TvProvider columns
+     */
+    public synchronized void update(long channelId, List<ContentValues> programs) {
+        int count = programs.size();
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        int[] codes = new int[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = programs.get(i);
+            starts[i] = values.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS);
+            ends[i] = values.getAsLong(Programs.COLUMN_END_TIME_UTC_MILLIS);
+            codes[i] = getCode(values.getAsString(Programs.COLUMN_CONTENT_RATING));
+        }
+        Timeline timeline = mChannels.get(channelId);
+        if (timeline == null) {
+            timeline = new Timeline();
+            mChannels.put(channelId, timeline);
+        }
+        timeline.merge(starts, ends, codes, count, System.currentTimeMillis());
+    }
+
+    /**
+     * Sets programs of a channel read from database, unless the channel was filled meanwhile.
+     * Ingestion may have stored newer programs while the database was read, those are kept.
+     *
+     * @param channelId Channel ID
+     * @param starts    Start times, sorted
+     * @param ends      End times
+     * @param ratings   Flattened ratings, null for programs without rating
+     * @param count     Number of programs
+     * @return False if the channel was already known and given programs were dropped
+     */
+    synchronized boolean load(long channelId, long[] starts, long[] ends, String[] ratings,
+            int count) {
+        if (mChannels.get(channelId) != null) {
+            return false;
+        }
+        int[] codes = new int[count];
+        for (int i = 0; i < count; i++) {
+            codes[i] = getCode(ratings[i]);
+        }
+        Timeline timeline = new Timeline();
+        timeline.merge(starts, ends, codes, count, System.currentTimeMillis());
+        mChannels.put(channelId, timeline);
+        return true;
+    }
+
+    /**
+     * Finds rating of the program running at given time
+     *
+     * @param channelId Channel ID
+     * @param time      Time in UTC millis
+     * @return Rating info, or null if no known program is running
+     */
+    public synchronized RatingInfo find(long channelId, long time) {
+        Timeline timeline = mChannels.get(channelId);
+        if (timeline == null) {
+            return null;
+        }
+        int position = timeline.find(time);
+        if (position < 0) {
+            return null;
+        }
+        int code = timeline.mCodes[position];
+        return new RatingInfo(code == NO_RATING ? null : getRating(code),
+                timeline.mEnds[position]);
+    }
+
+    /**
+     * Drops all channels, used when channel list is rebuilt
+     */
+    public synchronized void clear() {
+        mChannels.clear();
+    }
+
+    private int getCode(String rating) {
+        if (rating == null) {
+            return NO_RATING;
+        }
+        Integer code = mRatingCodes.get(rating);
+        if (code == null) {
+            code = mRatings.size();
+            mRatings.add(rating);
+            mParsedRatings.add(null);
+            mRatingCodes.put(rating, code);
+        }
+        return code;
+    }
+
+    private TvContentRating getRating(int code) {
+        TvContentRating rating = mParsedRatings.get(code);
+        if (rating == null) {
+            rating = TvContentRating.unflattenFromString(mRatings.get(code));
+            mParsedRatings.set(code, rating);
+        }
+        return rating;
+    }
+
+    /**
+     * Programs of one channel sorted by start time
+     */
+    private static final class Timeline {
+
+        private long[] mStarts = new long[0];
+        private long[] mEnds = new long[0];
+        private int[] mCodes = new int[0];
+        private int mSize = 0;
+
+        /**
+         * @return Position of program running at given time, or -1
+         */
+        int find(long time) {
+            // Last program that starts at or before given time
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mStarts[middle] <= time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int position = low - 1;
+            return position >= 0 && time < mEnds[position] ? position : -1;
+        }
+
+        /**
+         * Replaces programs overlapping the span of new ones and drops programs ended before
+         * given time
+         */
+        void merge(long[] starts, long[] ends, int[] codes, int count, long now) {
+            long spanStart = count > 0 ? starts[0] : Long.MAX_VALUE;
+            long spanEnd = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                spanEnd = Math.max(spanEnd, ends[i]);
+            }
+            long[] newStarts = new long[mSize + count];
+            long[] newEnds = new long[mSize + count];
+            int[] newCodes = new int[mSize + count];
+            int size = 0;
+            int position = 0;
+            for (int i = 0; i <= count; i++) {
+                // Old programs before the next new one, unless replaced or ended
+                long limit = i < count ? starts[i] : Long.MAX_VALUE;
+                while (position < mSize && mStarts[position] < limit) {
+                    boolean replaced = mEnds[position] > spanStart
+                            && mStarts[position] < spanEnd;
+                    if (!replaced && mEnds[position] > now) {
+                        newStarts[size] = mStarts[position];
+                        newEnds[size] = mEnds[position];
+                        newCodes[size] = mCodes[position];
+                        size++;
+                    }
+                    position++;
+                }
+                if (i < count && ends[i] > now) {
+                    newStarts[size] = starts[i];
+                    newEnds[size] = ends[i];
+                    newCodes[size] = codes[i];
+                    size++;
+                }
+            }
+            mStarts = newStarts;
+            mEnds = newEnds;
+            mCodes = newCodes;
+            mSize = size;
+        }
+    }
+}
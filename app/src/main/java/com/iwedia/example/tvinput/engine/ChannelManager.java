@@ -11,12 +11,21 @@
 package com.iwedia.example.tvinput.engine;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
-import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import com.iwedia.dtv.dtvmanager.IDTVManager;
 import com.iwedia.dtv.scan.FecType;
@@ -24,20 +33,24 @@ import com.iwedia.dtv.scan.IScanControl;
 import com.iwedia.dtv.scan.Modulation;
 import com.iwedia.dtv.scan.Polarization;
 import com.iwedia.dtv.scan.RollOff;
-import com.iwedia.dtv.service.IServiceControl;
 import com.iwedia.dtv.service.ServiceDescriptor;
+import com.iwedia.dtv.service.ServiceType;
 import com.iwedia.dtv.service.SourceType;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.example.tvinput.TvService;
 import com.iwedia.example.tvinput.data.ChannelDescriptor;
+import com.iwedia.example.tvinput.data.ChannelSnapshot;
+import com.iwedia.example.tvinput.data.RatingTimeline;
+import com.iwedia.example.tvinput.engine.utils.ServiceListFetcher;
+import com.iwedia.example.tvinput.utils.ChannelCache;
 import com.iwedia.example.tvinput.utils.ChannelUtils;
+import com.iwedia.example.tvinput.utils.ExampleSwitches;
 import com.iwedia.example.tvinput.utils.Logger;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -56,13 +69,34 @@ public class ChannelManager {
      */
     public static final int EC_ID_NOT_FOUND = -1;
     /**
-     * All channels
+     * Default number of channels inserted into TvProvider database with one batch operation
      */
-    private ArrayList<ChannelDescriptor> mAllChannels;
+    public static final int DEFAULT_STORE_BATCH_SIZE = 100;
+    /**
+     * Scan progress value of a finished route
+     */
+    private static final int SCAN_PROGRESS_FINISHED = 100;
+    /**
+     * Time to wait for further MW service list updates before channel list is synchronized
+     */
+    private static final long SERVICE_LIST_UPDATE_DELAY = 1000;
+    /**
+     * All channels with their lookup tables. Readers take the reference once and work on it
+     * without locking, writers publish a completely built new snapshot.
+     */
+    private volatile ChannelSnapshot mSnapshot = ChannelSnapshot.EMPTY;
+    /**
+     * Serializes channel list writers
+     */
+    private final Object mWriteLock = new Object();
     /**
      * List of IP channels. Key is Channel ID
      */
-    private ArrayList<ChannelDescriptor> mIpOnlyChannels = null;
+    private volatile ArrayList<ChannelDescriptor> mIpOnlyChannels = null;
+    /**
+     * True when IP channel list is read
+     */
+    private boolean mIpChannelsLoaded = false;
     /**
      * ID of TV Input
      */
@@ -78,6 +112,67 @@ public class ChannelManager {
     private IDTVManager mDTVManger;
     private RouteManager mRouteManager;
     private IScanControl mScanControl;
+    /**
+     * Reads MW service descriptors during channel list rebuild
+     */
+    private final ServiceListFetcher mServiceListFetcher;
+    /**
+     * Scan progress in percent keyed by install route, for all routes of the current scan
+     */
+    private final SparseIntArray mScanProgress = new SparseIntArray();
+    /**
+     * Source type scanned by each install route of the current scan, guarded by
+     * {@link #mScanProgress}
+     */
+    private final SparseArray<SourceType> mScanSourceTypes = new SparseArray<SourceType>();
+    /**
+     * Source types of services found by the last scan, by service name in order found. Used for
+     * channel list refresh until it is published, channels keep their type after that.
+     */
+    private final HashMap<String, ArrayList<SourceType>> mFoundSourceTypes =
+            new HashMap<String, ArrayList<SourceType>>();
+    /**
+     * Number of channels inserted into TvProvider database with one batch operation
+     */
+    private int mStoreBatchSize = DEFAULT_STORE_BATCH_SIZE;
+    /**
+     * On-disk copy of the channel list used for fast start
+     */
+    private final ChannelCache mChannelCache;
+    /**
+     * Stamp of channels read from channel cache, null if cache was not read
+     */
+    private ChannelCache.Stamp mCacheStamp;
+    /**
+     * Stores channels found by running scan, see {@link ExampleSwitches#ENABLE_STREAMING_INSTALL}
+     */
+    private final StreamingInstaller mStreamingInstaller;
+    /**
+     * Thread on which MW service list updates are applied, created on first update
+     */
+    private HandlerThread mUpdateThread;
+    private Handler mUpdateHandler;
+    /**
+     * Number of MW service list updates received since the last synchronization
+     */
+    private int mPendingUpdates = 0;
+    private final Runnable mServiceListUpdateRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            applyServiceListUpdates();
+        }
+    };
+
+    /**
+     * Modes of bringing TvProvider database in line with MW master list
+     */
+    public enum SyncMode {
+        /** Delete all channels and programs and insert channels again */
+        FULL,
+        /** Insert, update and delete only changed channels, keep programs of other channels */
+        INCREMENTAL
+    }
 
     /**
      * Constructor
@@ -90,9 +185,12 @@ public class ChannelManager {
         mDTVManger = mDvbManager.getDtvManager();
         mRouteManager = mDvbManager.getRouteManager();
         mScanControl = mDvbManager.getDtvManager().getScanControl();
+        mServiceListFetcher = new ServiceListFetcher(mDTVManger.getServiceControl());
         mInputId = TvContract.buildInputId(new ComponentName(mContext,
                 TvService.class));
         mIpOnlyChannels = new ArrayList<ChannelDescriptor>();
+        mChannelCache = new ChannelCache(mContext);
+        mStreamingInstaller = new StreamingInstaller(this, mDTVManger.getServiceControl());
     }
 
     /**
@@ -100,14 +198,60 @@ public class ChannelManager {
      */
     public void init() {
         mLog.v("initialize ChannelManager");
-        mAllChannels = loadChannels(mInputId);
-        ChannelUtils.initIpChannels(mContext);
-        ChannelUtils.readIpChannels(mContext, mIpOnlyChannels);
-        if (mAllChannels.isEmpty()) {
+        loadCachedChannels();
+        validateChannels();
+        initIpChannels();
+    }
+
+    /**
+     * Publishes channels from channel cache, if there is one. This is fast and makes channels
+     * available before TvProvider is queried.
+     *
+     * @return True if cached channels are published
+     */
+    public boolean loadCachedChannels() {
+        long start = SystemClock.elapsedRealtime();
+        ArrayList<ChannelDescriptor> cached = new ArrayList<ChannelDescriptor>();
+        mCacheStamp = mChannelCache.read(cached);
+        if (mCacheStamp == null) {
+            return false;
+        }
+        publishChannels(cached, false);
+        mLog.i("[loadCachedChannels][" + cached.size() + " channels]["
+                + (SystemClock.elapsedRealtime() - start) + " ms]");
+        return true;
+    }
+
+    /**
+     * Checks published channels against TvProvider and reloads them if they differ. If there
+     * are no channels at all, channel list is built from MW master list.
+     */
+    public void validateChannels() {
+        ChannelCache.Stamp providerStamp = queryProviderStamp();
+        if (mCacheStamp == null || !mCacheStamp.matches(providerStamp)) {
+            mLog.i("[validateChannels][cache is not valid][cache: " + mCacheStamp
+                    + "][provider: " + providerStamp + "]");
+            setChannels(loadChannels(mInputId));
+        }
+        if (mSnapshot.isEmpty()) {
             mLog.i("[initialize][first time initialization]");
             refreshChannelList();
         }
-        print(mAllChannels);
+        print(mSnapshot.getChannels());
+    }
+
+    /**
+     * Reads IP channel list, does nothing if it is already read
+     */
+    public synchronized void initIpChannels() {
+        if (mIpChannelsLoaded) {
+            return;
+        }
+        ArrayList<ChannelDescriptor> ipChannels = new ArrayList<ChannelDescriptor>();
+        ChannelUtils.initIpChannels(mContext);
+        ChannelUtils.readIpChannels(mContext, ipChannels);
+        mIpOnlyChannels = ipChannels;
+        mIpChannelsLoaded = true;
     }
 
     /**
@@ -119,22 +263,105 @@ public class ChannelManager {
      */
     public ChannelDescriptor getChannelById(long id) {
         mLog.d("[getChannelByUri][" + id + "]");
-        for (ChannelDescriptor cd : mAllChannels) {
-            if (cd.getChannelId() == id) {
-                return cd;
-            }
-        }
-        return null;
+        return mSnapshot.getById(id);
     }
 
     public ChannelDescriptor getChannelByIndex(int channelIndex) {
         mLog.d("[getChannelByIndex][" + channelIndex + "]");
+        ChannelDescriptor channel = mSnapshot.getChannel(channelIndex);
+        if (channel == null) {
+            mLog.e("[getChannelByIndex][index out of bounds: " + channelIndex + "]");
+        }
+        return channel;
+    }
+
+    /**
+     * Gets channel by MW service ID
+     *
+     * @param serviceId Service ID in MW master list
+     * @return Channel or null if not found
+     */
+    public ChannelDescriptor getChannelByServiceId(int serviceId) {
+        mLog.d("[getChannelByServiceId][" + serviceId + "]");
+        return mSnapshot.getByServiceId(serviceId);
+    }
+
+    /**
+     * Gets channel by display number
+     *
+     * @param displayNumber Numeric value of channel display number
+     * @return Channel or null if not found
+     */
+    public ChannelDescriptor getChannelByDisplayNumber(int displayNumber) {
+        mLog.d("[getChannelByDisplayNumber][" + displayNumber + "]");
+        return mSnapshot.getByDisplayNumber(displayNumber);
+    }
+
+    /**
+     * Gets current channel list snapshot. Snapshot never changes, so it gives a consistent view
+     * of the channel list for as long as the caller keeps it.
+     *
+     * @return Current snapshot
+     */
+    public ChannelSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Gets version of current channel list snapshot. Long running jobs can compare it with
+     * version of the snapshot they started with to detect that the channel list was changed.
+     *
+     * @return Current snapshot version
+     */
+    public int getSnapshotVersion() {
+        return mSnapshot.getVersion();
+    }
+
+    /**
+     * Publishes new channel list snapshot and stores it to channel cache
+     *
+     * @param channels New channel list
+     */
+    private void setChannels(List<ChannelDescriptor> channels) {
+        publishChannels(channels, true);
+    }
+
+    /**
+     * Publishes new channel list snapshot
+     *
+     * @param channels    New channel list
+     * @param updateCache True if channel cache should be rewritten
+     */
+    private void publishChannels(List<ChannelDescriptor> channels, boolean updateCache) {
+        synchronized (mWriteLock) {
+            mSnapshot = new ChannelSnapshot(channels, mSnapshot.getVersion() + 1);
+            if (updateCache) {
+                mChannelCache.write(mSnapshot.getChannels());
+            }
+        }
+    }
+
+    /**
+     * Reads stamp of channel rows stored in TvProvider, used for channel cache validation
+     *
+     * @return Stamp or null if TvProvider query failed
+     */
+    private ChannelCache.Stamp queryProviderStamp() {
+        final String[] projection = {
+                Channels._ID
+        };
+        Cursor cursor = mContext.getContentResolver().query(
+                TvContract.buildChannelsUriForInput(mInputId), projection,
+                null, null, Channels._ID + " DESC");
+        if (cursor == null) {
+            return null;
+        }
         try {
-            return mAllChannels.get(channelIndex);
-        } catch (Exception e) {
-            e.printStackTrace();
+            long maxId = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+            return new ChannelCache.Stamp(cursor.getCount(), maxId);
+        } finally {
+            cursor.close();
         }
-        return null;
     }
 
     private ArrayList<ChannelDescriptor> loadChannels(String inputId) {
@@ -150,9 +377,10 @@ public class ChannelManager {
         if (cursor == null) {
             return ret;
         }
+        ChannelDescriptor.CursorColumns columns = new ChannelDescriptor.CursorColumns(cursor);
         cursor.moveToFirst();
         while (!cursor.isAfterLast()) {
-            ChannelDescriptor cd = new ChannelDescriptor(cursor);
+            ChannelDescriptor cd = new ChannelDescriptor(cursor, columns);
             mLog.d("[loadChannels] index=" + cd.getChannelId() + " info=" + cd);
             ret.add(cd);
             cursor.moveToNext();
@@ -162,92 +390,449 @@ public class ChannelManager {
     }
 
     /**
-     * Inserts channels into TvProvider database
+     * Inserts channels into TvProvider database in batches and writes resulting row IDs back
+     * into given channels
      *
-     * @param context  of a service
      * @param inputId  this TV input service
      * @param channels to be inserted into a TVProvider database
+     * @return True if all channels are stored
      */
-    private void storeChannels(String inputId, List<ChannelDescriptor> channels) {
-        final String[] projection = {
-                TvContract.Channels._ID,
-                TvContract.Channels.COLUMN_DISPLAY_NAME,
-                TvContract.Channels.COLUMN_DISPLAY_NUMBER,
-        };
-        Cursor cursor = mContext.getContentResolver().query(
-                TvContract.buildChannelsUriForInput(mInputId), projection,
-                null, null, null);
-        if (cursor == null) {
-            mLog.e("[storeChannels][cursor is null");
+    private boolean storeChannels(String inputId, List<ChannelDescriptor> channels) {
+        int batchSize = mStoreBatchSize;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+                Math.min(batchSize, channels.size()));
+        for (int first = 0; first < channels.size(); first += batchSize) {
+            int last = Math.min(first + batchSize, channels.size());
+            operations.clear();
+            for (int i = first; i < last; i++) {
+                operations.add(ContentProviderOperation.newInsert(Channels.CONTENT_URI)
+                        .withValues(channels.get(i).getContentValues(inputId)).build());
+            }
+            ContentProviderResult[] results;
+            try {
+                results = mContext.getContentResolver().applyBatch(TvContract.AUTHORITY,
+                        operations);
+            } catch (RemoteException e) {
+                mLog.e("[storeChannels][error adding channels to the database]");
+                e.printStackTrace();
+                return false;
+            } catch (OperationApplicationException e) {
+                mLog.e("[storeChannels][error adding channels to the database]");
+                e.printStackTrace();
+                return false;
+            }
+            for (int i = first; i < last; i++) {
+                ChannelDescriptor channel = channels.get(i);
+                channel.setId(ContentUris.parseId(results[i - first].uri));
+                mLog.i("[storeChannels][add channel][" + channel + "]");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets fetcher used for reading MW service descriptors, it can be used to tune chunk size
+     * and number of worker threads
+     *
+     * @return Service list fetcher
+     */
+    public ServiceListFetcher getServiceListFetcher() {
+        return mServiceListFetcher;
+    }
+
+    /**
+     * Sets number of channels inserted into TvProvider database with one batch operation
+     *
+     * @param batchSize Number of channels per batch, must be positive
+     */
+    public void setStoreBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        mStoreBatchSize = batchSize;
+    }
+
+    /**
+     * Records source type of a service reported by running scan and stages it, it is stored into
+     * TvProvider database with the next batch if streaming install is running
+     *
+     * @param installRoute Route which found the service
+     * @param name         Service name
+     * @param serviceType  Service type
+     */
+    public void onServiceFound(int installRoute, String name, ServiceType serviceType) {
+        SourceType sourceType;
+        synchronized (mScanProgress) {
+            sourceType = mScanSourceTypes.get(installRoute, SourceType.UNDEFINED);
+        }
+        if (sourceType == SourceType.UNDEFINED || TextUtils.isEmpty(name)) {
             return;
         }
-        for (ChannelDescriptor channel : channels) {
-            Uri retUri = mContext.getContentResolver().insert(
-                    TvContract.Channels.CONTENT_URI,
-                    channel.getContentValues(inputId));
-            if (retUri == null) {
-                mLog.e("[storeChannels][error adding channel to the database");
-            } else {
-                channel.setId(ContentUris.parseId(retUri));
-                mLog.i("[storeChannels][add channel][" + channel + "]");
+        synchronized (mFoundSourceTypes) {
+            ArrayList<SourceType> types = mFoundSourceTypes.get(name);
+            if (types == null) {
+                types = new ArrayList<SourceType>(1);
+                mFoundSourceTypes.put(name, types);
             }
+            types.add(sourceType);
         }
-        cursor.close();
+        mStreamingInstaller.stage(name, serviceType, sourceType);
+    }
+
+    /**
+     * Stops storing channels found by running scan. Must be called before the channel list is
+     * refreshed at the end of scan.
+     */
+    public void stopStreamingInstall() {
+        mStreamingInstaller.stop();
     }
 
+    /**
+     * Stores channels found by running scan and publishes them after the current ones
+     *
+     * @param channels  Channels with provisional display numbers
+     * @param installer Installer which found the channels
+     * @return True if channels are stored and published
+     */
+    boolean appendChannels(List<ChannelDescriptor> channels, StreamingInstaller installer) {
+        synchronized (mWriteLock) {
+            // Scan might have finished while the batch was prepared
+            if (!installer.isActive()) {
+                return false;
+            }
+            if (!storeChannels(mInputId, channels)) {
+                return false;
+            }
+            ArrayList<ChannelDescriptor> all = new ArrayList<ChannelDescriptor>(
+                    mSnapshot.getChannels());
+            all.addAll(channels);
+            setChannels(all);
+            return true;
+        }
+    }
+
+    /**
+     * Rebuilds channel list from MW master list using {@link SyncMode#INCREMENTAL} mode
+     */
     public void refreshChannelList() {
-        int displayNumber = 1;
-        String formattedChannelNumber = "";
-        List<ChannelDescriptor> channels = new ArrayList<ChannelDescriptor>();
-        IServiceControl serviceControl = mDTVManger.getServiceControl();
-        mAllChannels = new ArrayList<ChannelDescriptor>();
+        refreshChannelList(SyncMode.INCREMENTAL);
+    }
+
+    /**
+     * Rebuilds channel list from MW master list and stores it into TvProvider database
+     *
+     * @param mode Defines how TvProvider database is brought in line with MW master list
+     */
+    public void refreshChannelList(SyncMode mode) {
+        mLog.d("[refreshChannelList][mode: " + mode + "]");
+        synchronized (mWriteLock) {
+            refreshChannelListLocked(mode);
+        }
+    }
+
+    private void refreshChannelListLocked(SyncMode mode) {
+        // IP channel list may not be read yet by deferred startup, building the list without it
+        // would delete stored IP channels and their programs
+        initIpChannels();
+        if (mode == SyncMode.INCREMENTAL) {
+            ArrayList<ChannelDescriptor> channels = buildChannelList();
+            if (syncChannels(channels)) {
+                setChannels(channels);
+                onScannedChannelsPublished();
+                return;
+            }
+            mLog.e("[refreshChannelList][incremental sync failed, doing full rebuild]");
+        }
+        // Readers keep using the previous snapshot until the new one is published
         // 1) Delete all channels from TV provider database
         mContext.getContentResolver().delete(
                 TvContract.buildChannelsUriForInput(mInputId), null, null);
         mContext.getContentResolver().delete(TvContract.Programs.CONTENT_URI,
                 null, null);
+        RatingTimeline.getInstance().clear();
         // 2) Add DVB channels founded from scan
-        int channelListSize = getChannelListSize();
+        ArrayList<ChannelDescriptor> channels = buildChannelList();
+        // Save channels to TV provider database and load them to TIF memory
+        if (storeChannels(mInputId, channels)) {
+            setChannels(channels);
+            onScannedChannelsPublished();
+        } else {
+            setChannels(loadChannels(mInputId));
+        }
+    }
+
+    /**
+     * Drops source types found by scan once channels built from them are published, later
+     * refreshes take source types from published channels
+     */
+    private void onScannedChannelsPublished() {
+        if (isScanRunning()) {
+            return;
+        }
+        synchronized (mFoundSourceTypes) {
+            mFoundSourceTypes.clear();
+        }
+    }
+
+    /**
+     * Schedules synchronization of channel list with MW master list after the broadcaster has
+     * changed its lineup. Bursts of updates are collapsed, the channel list is synchronized once
+     * {@link #SERVICE_LIST_UPDATE_DELAY} ms after the last update. Updates received while scan is
+     * running are applied when scan ends.
+     */
+    public synchronized void onServiceListUpdated() {
+        if (mUpdateThread == null) {
+            mUpdateThread = new HandlerThread(ChannelManager.class.getSimpleName());
+            mUpdateThread.start();
+            mUpdateHandler = new Handler(mUpdateThread.getLooper());
+        }
+        mPendingUpdates++;
+        mUpdateHandler.removeCallbacks(mServiceListUpdateRunnable);
+        mUpdateHandler.postDelayed(mServiceListUpdateRunnable, SERVICE_LIST_UPDATE_DELAY);
+    }
+
+    private void applyServiceListUpdates() {
+        int updates;
+        synchronized (this) {
+            if (isScanRunning()) {
+                // Kept pending, applied again when scan ends, see onScanEnded
+                mLog.d("[applyServiceListUpdates][scan is running, " + mPendingUpdates
+                        + " updates deferred]");
+                return;
+            }
+            updates = mPendingUpdates;
+            mPendingUpdates = 0;
+        }
+        long start = SystemClock.elapsedRealtime();
+        refreshChannelList(SyncMode.INCREMENTAL);
+        mLog.i("[applyServiceListUpdates][" + updates + " updates]["
+                + (SystemClock.elapsedRealtime() - start) + " ms]");
+    }
+
+    /**
+     * Applies service list updates deferred while scan was running
+     */
+    private synchronized void onScanEnded() {
+        if (mPendingUpdates > 0 && mUpdateHandler != null) {
+            mUpdateHandler.removeCallbacks(mServiceListUpdateRunnable);
+            mUpdateHandler.postDelayed(mServiceListUpdateRunnable, SERVICE_LIST_UPDATE_DELAY);
+        }
+    }
+
+    /**
+     * Stops thread which applies MW service list updates, pending updates are dropped
+     */
+    public synchronized void release() {
+        if (mUpdateThread != null) {
+            mUpdateHandler.removeCallbacks(mServiceListUpdateRunnable);
+            mUpdateThread.quit();
+            mUpdateThread = null;
+            mUpdateHandler = null;
+        }
+        mStreamingInstaller.stop();
+    }
+
+    /**
+     * Creates channel list from MW master list followed by IP channels
+     *
+     * @return Channel list, channel IDs are not set
+     */
+    private ArrayList<ChannelDescriptor> buildChannelList() {
+        int displayNumber = 1;
+        ArrayList<ChannelDescriptor> channels = new ArrayList<ChannelDescriptor>();
+        ArrayList<ChannelDescriptor> ipChannels = mIpOnlyChannels;
+        int channelListSize = getDtvChannelListSize();
+        ChannelSnapshot snapshot = mSnapshot;
+        SourceType defaultType = getDvbSourceType();
+        HashMap<String, Integer> foundTaken = new HashMap<String, Integer>();
+        // ! If there is IP first element in service list (use case with
+        // Hybrid tuner) it's a DUMMY channel
+        int firstIndex = 0;
         if (mRouteManager.getLiveRouteIp() != RouteManager.EC_INVALID_ROUTE) {
-            channelListSize -= mIpOnlyChannels.size();
+            firstIndex++;
         }
-        // ! Limitation: support only 1 DVB route in this example
-        SourceType type = SourceType.UNDEFINED;
-        if (mRouteManager.getInstallRouteCab() != RouteManager.EC_INVALID_ROUTE) {
-            type = SourceType.CAB;
-        } else if (mRouteManager.getInstallRouteTer() != RouteManager.EC_INVALID_ROUTE) {
-            type = SourceType.TER;
-        } else if (mRouteManager.getInstallRouteSat() != RouteManager.EC_INVALID_ROUTE) {
-            type = SourceType.SAT;
-        }
-        for (int i = 0; i < channelListSize; i++) {
-            // ! If there is IP first element in service list (use case with
-            // Hybrid tuner) it's a DUMMY channel
-            int properIndex = i;
-            if (mRouteManager.getLiveRouteIp() != RouteManager.EC_INVALID_ROUTE) {
-                properIndex++;
+        ServiceDescriptor[] descriptors = mServiceListFetcher.fetch(
+                DtvManager.MASTER_LIST_INDEX, firstIndex, channelListSize);
+        for (ServiceDescriptor servDesc : descriptors) {
+            if (servDesc == null) {
+                mLog.e("[buildChannelList][service descriptor not available]");
+                continue;
             }
-            ServiceDescriptor servDesc = serviceControl.getServiceDescriptor(
-                    DtvManager.MASTER_LIST_INDEX, properIndex);
-            formattedChannelNumber = String.format(Locale.ENGLISH, "%02d",
-                    displayNumber);
-            channels.add(new ChannelDescriptor(formattedChannelNumber, servDesc
-                    .getName(), servDesc.getMasterIndex(), type, servDesc.getServiceType()));
+            channels.add(new ChannelDescriptor(ChannelUtils.formatDisplayNumber(displayNumber),
+                    servDesc.getName(), servDesc.getMasterIndex(),
+                    getSourceType(servDesc, foundTaken, snapshot, defaultType),
+                    servDesc.getServiceType()));
             displayNumber++;
         }
         // Add IP channels to list
-        for (ChannelDescriptor ipService : mIpOnlyChannels) {
-            formattedChannelNumber = String.format(Locale.ENGLISH, "%02d",
-                    displayNumber);
-            channels.add(new ChannelDescriptor(formattedChannelNumber,
+        for (ChannelDescriptor ipService : ipChannels) {
+            channels.add(new ChannelDescriptor(ChannelUtils.formatDisplayNumber(displayNumber),
                     ipService.getUrl()));
             displayNumber++;
         }
         print(channels);
-        // Save channels to TV provider database
-        storeChannels(mInputId, channels);
-        // Load channels to TIF memory
-        mAllChannels = loadChannels(mInputId);
+        return channels;
+    }
+
+    /**
+     * Gets source type of a service. Services found by the last scan get the type of the route
+     * which found them, services with the same name are matched in list order. Other services
+     * keep the type of their channel, the rest get the default type.
+     *
+     * @param descriptor  Service descriptor
+     * @param foundTaken  Number of found source types already taken, by service name
+     * @param snapshot    Channels published before refresh
+     * @param defaultType Type of services neither found by scan nor published
+     * @return Source type
+     */
+    private SourceType getSourceType(ServiceDescriptor descriptor,
+            HashMap<String, Integer> foundTaken, ChannelSnapshot snapshot, SourceType defaultType) {
+        String name = descriptor.getName();
+        synchronized (mFoundSourceTypes) {
+            ArrayList<SourceType> types = mFoundSourceTypes.get(name);
+            if (types != null) {
+                Integer taken = foundTaken.get(name);
+                int index = taken == null ? 0 : taken;
+                if (index < types.size()) {
+                    foundTaken.put(name, index + 1);
+                    return types.get(index);
+                }
+            }
+        }
+        ChannelDescriptor channel = snapshot.getByServiceId(descriptor.getMasterIndex());
+        if (channel != null && channel.getType() != SourceType.IP
+                && TextUtils.equals(channel.getName(), name)) {
+            return channel.getType();
+        }
+        return defaultType;
+    }
+
+    /**
+     * Gets source type of DVB services whose delivery system is not known, e.g. services
+     * installed before the channel list was first stored
+     *
+     * @return Source type of the first available install route, in order cable, terrestrial,
+     * satellite
+     */
+    private SourceType getDvbSourceType() {
+        if (mRouteManager.getInstallRouteCab() != RouteManager.EC_INVALID_ROUTE) {
+            return SourceType.CAB;
+        } else if (mRouteManager.getInstallRouteTer() != RouteManager.EC_INVALID_ROUTE) {
+            return SourceType.TER;
+        } else if (mRouteManager.getInstallRouteSat() != RouteManager.EC_INVALID_ROUTE) {
+            return SourceType.SAT;
+        }
+        return SourceType.UNDEFINED;
+    }
+
+    /**
+     * Brings TvProvider channel rows in line with given channel list. Rows are matched by
+     * {@link ChannelDescriptor#getSyncKey()}, only changed rows are written and all changes are
+     * applied in a single batch. Programs of kept channels stay in the database. A row whose key
+     * now belongs to a service with a different name or type is replaced by a new row.
+     *
+     * @param channels Channel list, on success IDs of all channels are set
+     * @return True if synchronization succeeded
+     */
+    private boolean syncChannels(List<ChannelDescriptor> channels) {
+        HashMap<String, ChannelDescriptor> existing = new HashMap<String, ChannelDescriptor>();
+        // Rows stored during scan before MW listed their service, keyed by name
+        HashMap<String, ChannelDescriptor> provisional = new HashMap<String, ChannelDescriptor>();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (ChannelDescriptor stored : loadChannels(mInputId)) {
+            if (stored.getType() != SourceType.IP
+                    && stored.getServiceId() == ChannelDescriptor.EC_NOT_AVAILABLE
+                    && !provisional.containsKey(stored.getName())) {
+                provisional.put(stored.getName(), stored);
+            } else if (existing.containsKey(stored.getSyncKey())) {
+                // Duplicated row, keep only the first one
+                operations.add(ContentProviderOperation.newDelete(
+                        TvContract.buildChannelUri(stored.getChannelId())).build());
+            } else {
+                existing.put(stored.getSyncKey(), stored);
+            }
+        }
+        int updated = 0;
+        int unchanged = 0;
+        int replaced = 0;
+        // Operation index of every insert, or -1 for already stored channels
+        int[] insertOperations = new int[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            ChannelDescriptor channel = channels.get(i);
+            ChannelDescriptor stored = existing.remove(channel.getSyncKey());
+            if (stored != null && !isSameService(channel, stored)) {
+                // Service ID is a position in MW list, another service took it. Old row is
+                // deleted together with its programs, new service gets a new row.
+                replaced++;
+                operations.add(ContentProviderOperation.newDelete(
+                        TvContract.buildChannelUri(stored.getChannelId())).build());
+                stored = null;
+            }
+            if (stored == null && channel.getType() != SourceType.IP) {
+                stored = provisional.remove(channel.getName());
+            }
+            if (stored == null) {
+                insertOperations[i] = operations.size();
+                operations.add(ContentProviderOperation.newInsert(Channels.CONTENT_URI)
+                        .withValues(channel.getContentValues(mInputId)).build());
+                continue;
+            }
+            insertOperations[i] = -1;
+            channel.setId(stored.getChannelId());
+            if (channel.hasSameContent(stored)) {
+                unchanged++;
+            } else {
+                updated++;
+                operations.add(ContentProviderOperation.newUpdate(
+                        TvContract.buildChannelUri(channel.getChannelId()))
+                        .withValues(channel.getContentValues(mInputId)).build());
+            }
+        }
+        // Programs of removed channels are deleted by TvProvider
+        for (ChannelDescriptor stored : existing.values()) {
+            operations.add(ContentProviderOperation.newDelete(
+                    TvContract.buildChannelUri(stored.getChannelId())).build());
+        }
+        for (ChannelDescriptor stored : provisional.values()) {
+            operations.add(ContentProviderOperation.newDelete(
+                    TvContract.buildChannelUri(stored.getChannelId())).build());
+        }
+        mLog.i("[syncChannels][operations: " + operations.size() + "][updated: " + updated
+                + "][unchanged: " + unchanged + "][replaced: " + replaced + "][removed: "
+                + (existing.size() + provisional.size()) + "]");
+        if (operations.isEmpty()) {
+            return true;
+        }
+        ContentProviderResult[] results;
+        try {
+            results = mContext.getContentResolver().applyBatch(TvContract.AUTHORITY,
+                    operations);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return false;
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            return false;
+        }
+        for (int i = 0; i < channels.size(); i++) {
+            if (insertOperations[i] >= 0) {
+                channels.get(i).setId(ContentUris.parseId(results[insertOperations[i]].uri));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if a stored row with the same synchronization key belongs to the same service.
+     * DVB rows are keyed by position in MW master list, which is given to a different service
+     * after the service list changes. Such a row must not keep programs of the old service.
+     */
+    private static boolean isSameService(ChannelDescriptor channel, ChannelDescriptor stored) {
+        if (channel.getType() == SourceType.IP) {
+            return true;
+        }
+        return TextUtils.equals(channel.getName(), stored.getName())
+                && channel.getServiceType() == stored.getServiceType();
     }
 
     private void print(HashMap<Long, ChannelDescriptor> channels) {
@@ -266,29 +851,173 @@ public class ChannelManager {
         }
     }
 
+    /**
+     * Starts scan on every available install route at once. Progress of each route is tracked
+     * separately, see {@link #onScanProgressChanged(int, int)} and
+     * {@link #onScanFinished(int)}.
+     *
+     * @throws InternalException If scan could not be started on any route
+     */
     public void startScan() throws InternalException {
-        if (mRouteManager.getInstallRouteCab() != ChannelManager.EC_ID_NOT_FOUND) {
-            mScanControl.autoScan(mDvbManager.getRouteManager().getInstallRouteCab());
-            mRouteManager.updateCurrentInstallRoute(mRouteManager.getInstallRouteCab());
-        } else if (mRouteManager.getInstallRouteTer() != ChannelManager.EC_ID_NOT_FOUND) {
-            mScanControl.autoScan(mDvbManager.getRouteManager().getInstallRouteTer());
-            mRouteManager.updateCurrentInstallRoute(mRouteManager.getInstallRouteTer());
-        } else if (mRouteManager.getInstallRouteSat() != ChannelManager.EC_ID_NOT_FOUND) {
-            mScanControl.setFrequency(11156);
-            mScanControl.setSymbolRate(12000);
-            mScanControl.setPolarization(Polarization.HORIZONTAL);
-            mScanControl.setModulation(Modulation.MODULATION_QPSK);
-            mScanControl.setFecType(FecType.FEC_3_4);
-            mScanControl.setRollOff(RollOff.ROLL_OFF_35);
-            mScanControl.manualScan(mRouteManager.getInstallRouteSat());
-            mRouteManager.updateCurrentInstallRoute(mRouteManager.getInstallRouteSat());
-        } else if (mRouteManager.getInstallRouteIp() != ChannelManager.EC_ID_NOT_FOUND) {
+        synchronized (mScanProgress) {
+            mScanProgress.clear();
+            mScanSourceTypes.clear();
+        }
+        synchronized (mFoundSourceTypes) {
+            mFoundSourceTypes.clear();
+        }
+        if (ExampleSwitches.ENABLE_STREAMING_INSTALL) {
+            mStreamingInstaller.start();
+        }
+        InternalException error = null;
+        int installRoute = mRouteManager.getInstallRouteCab();
+        if (installRoute != RouteManager.EC_INVALID_ROUTE) {
+            try {
+                mScanControl.autoScan(installRoute);
+                onScanStarted(installRoute, SourceType.CAB);
+            } catch (InternalException e) {
+                mLog.e("[startScan][cable scan failed]");
+                error = e;
+            }
+        }
+        installRoute = mRouteManager.getInstallRouteTer();
+        if (installRoute != RouteManager.EC_INVALID_ROUTE) {
+            try {
+                mScanControl.autoScan(installRoute);
+                onScanStarted(installRoute, SourceType.TER);
+            } catch (InternalException e) {
+                mLog.e("[startScan][terrestrial scan failed]");
+                error = e;
+            }
+        }
+        installRoute = mRouteManager.getInstallRouteSat();
+        if (installRoute != RouteManager.EC_INVALID_ROUTE) {
+            try {
+                mScanControl.setFrequency(11156);
+                mScanControl.setSymbolRate(12000);
+                mScanControl.setPolarization(Polarization.HORIZONTAL);
+                mScanControl.setModulation(Modulation.MODULATION_QPSK);
+                mScanControl.setFecType(FecType.FEC_3_4);
+                mScanControl.setRollOff(RollOff.ROLL_OFF_35);
+                mScanControl.manualScan(installRoute);
+                onScanStarted(installRoute, SourceType.SAT);
+            } catch (InternalException e) {
+                mLog.e("[startScan][satellite scan failed]");
+                error = e;
+            }
+        }
+        if (mRouteManager.getInstallRouteIp() != RouteManager.EC_INVALID_ROUTE) {
             // Usually operator specific scan goes here
         }
+        synchronized (mScanProgress) {
+            if (mScanProgress.size() == 0 && error != null) {
+                mStreamingInstaller.stop();
+                throw error;
+            }
+        }
     }
 
+    /**
+     * Aborts scan on every route that has not finished yet. Scan state is cleared, since an
+     * aborted route may never report that it has finished.
+     *
+     * @throws InternalException If aborting scan failed
+     */
     public void stopScan() throws InternalException {
-        mScanControl.abortScan(mRouteManager.getCurrentInstallRoute());
+        int[] routes;
+        synchronized (mScanProgress) {
+            routes = new int[mScanProgress.size()];
+            for (int i = 0; i < routes.length; i++) {
+                routes[i] = mScanProgress.keyAt(i);
+            }
+        }
+        try {
+            for (int route : routes) {
+                mScanControl.abortScan(route);
+            }
+        } finally {
+            synchronized (mScanProgress) {
+                mScanProgress.clear();
+            }
+            mStreamingInstaller.stop();
+            onScanEnded();
+        }
+    }
+
+    private void onScanStarted(int installRoute, SourceType sourceType) {
+        mLog.d("[onScanStarted][" + mRouteManager.getInstallRouteDescription(installRoute) + "]");
+        mRouteManager.updateCurrentInstallRoute(installRoute);
+        synchronized (mScanProgress) {
+            mScanProgress.put(installRoute, 0);
+            mScanSourceTypes.put(installRoute, sourceType);
+        }
+    }
+
+    /**
+     * Updates scan progress of one route
+     *
+     * @param installRoute Route which reported progress
+     * @param value        Progress of the route in percent
+     * @return Overall progress of all scanned routes in percent
+     */
+    public int onScanProgressChanged(int installRoute, int value) {
+        synchronized (mScanProgress) {
+            if (mScanProgress.indexOfKey(installRoute) >= 0
+                    && mScanProgress.get(installRoute) < SCAN_PROGRESS_FINISHED) {
+                mScanProgress.put(installRoute, Math.min(value, SCAN_PROGRESS_FINISHED - 1));
+            }
+            return getScanProgressLocked();
+        }
+    }
+
+    /**
+     * Marks scan of one route as finished
+     *
+     * @param installRoute Route which finished scanning
+     * @return True if all scanned routes have finished
+     */
+    public boolean onScanFinished(int installRoute) {
+        boolean finished;
+        synchronized (mScanProgress) {
+            if (mScanProgress.indexOfKey(installRoute) >= 0) {
+                mScanProgress.put(installRoute, SCAN_PROGRESS_FINISHED);
+            }
+            finished = getScanProgressLocked() == SCAN_PROGRESS_FINISHED;
+        }
+        if (finished) {
+            onScanEnded();
+        }
+        return finished;
+    }
+
+    /**
+     * Gets overall scan progress
+     *
+     * @return Average progress of all scanned routes in percent
+     */
+    public int getScanProgress() {
+        synchronized (mScanProgress) {
+            return getScanProgressLocked();
+        }
+    }
+
+    private boolean isScanRunning() {
+        synchronized (mScanProgress) {
+            return mScanProgress.size() > 0
+                    && getScanProgressLocked() < SCAN_PROGRESS_FINISHED;
+        }
+    }
+
+    private int getScanProgressLocked() {
+        int routes = mScanProgress.size();
+        if (routes == 0) {
+            return SCAN_PROGRESS_FINISHED;
+        }
+        int sum = 0;
+        for (int i = 0; i < routes; i++) {
+            sum += mScanProgress.valueAt(i);
+        }
+        return sum / routes;
     }
 
     /**
@@ -15,6 +15,7 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.view.WindowManager;
 
@@ -27,13 +28,18 @@ import com.iwedia.dtv.types.InternalException;
 import com.iwedia.example.tvinput.TvService;
 import com.iwedia.example.tvinput.callbacks.EpgCallback;
 import com.iwedia.example.tvinput.data.ChannelDescriptor;
-import com.iwedia.example.tvinput.engine.epg.EpgFull;
-import com.iwedia.example.tvinput.engine.epg.EpgNowNext;
+import com.iwedia.example.tvinput.engine.epg.EpgRefreshDispatcher;
+import com.iwedia.example.tvinput.engine.epg.EpgRetention;
+import com.iwedia.example.tvinput.engine.epg.EpgTaskScheduler;
+import com.iwedia.example.tvinput.engine.epg.LongDescriptionFiller;
+import com.iwedia.example.tvinput.engine.epg.NowNextCache;
+import com.iwedia.example.tvinput.engine.utils.StartupGraph;
 import com.iwedia.example.tvinput.utils.ExampleSwitches;
 import com.iwedia.example.tvinput.utils.Logger;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.Future;
 
 /**
  * Manager for handling MW Components.
@@ -58,6 +64,30 @@ public class DtvManager {
 
     /** Comedia's Master list index */
     public static final int MASTER_LIST_INDEX = 0;
+    /** Startup step creating Route manager */
+    public static final String STARTUP_ROUTES = "routes";
+    /** Startup step creating Subtitle manager */
+    public static final String STARTUP_SUBTITLES = "subtitles";
+    /** Startup step creating Audio manager */
+    public static final String STARTUP_AUDIO = "audio";
+    /** Startup step creating Channel manager and publishing cached channels */
+    public static final String STARTUP_CHANNELS = "channels";
+    /** Startup step validating channels against TvProvider */
+    public static final String STARTUP_CHANNELS_VALIDATED = "channelsValidated";
+    /** Startup step reading IP channel list, deferred */
+    public static final String STARTUP_IP_CHANNELS = "ipChannels";
+    /** Startup step loading EPG acquisition info */
+    public static final String STARTUP_EPG_PREFS = "epgPrefs";
+    /** Startup step creating EPG manager and registering EPG callbacks, deferred */
+    public static final String STARTUP_EPG = "epg";
+    /** Number of threads running startup steps */
+    private static final int STARTUP_THREADS = 3;
+    /** Time after which deferred startup steps run even if nothing was tuned */
+    private static final long DEFERRED_STARTUP_DELAY = 15000;
+    /** Maximum time to wait for a startup step */
+    private static final long STARTUP_STEP_TIMEOUT = 30000;
+    /** Marks current transponder as not known */
+    private static final long UNKNOWN_TRANSPONDER = -1;
     /** DtvManager instance */
     private IDTVManager mDtvManager = null;
     /** Subtitle manager instance */
@@ -74,6 +104,8 @@ public class DtvManager {
     private static DtvManager sInstance = null;
     /** Current active channel */
     private int mCurrentlyActiveChannel = 0;
+    /** Frequency of current transponder, updated on tune so EPG checks need no MW call */
+    private volatile long mCurrentTransponder = UNKNOWN_TRANSPONDER;
     /** Thread for handler creation */
     private HandlerThread mHandlerThread;
     /** Logic for acquisition timings */
@@ -88,8 +120,30 @@ public class DtvManager {
     private int mVolume;
     /** EPG manager helper class */
     private EpgManager mEpgManager = null;
+    /** Fills long descriptions of EPG programs in background */
+    private LongDescriptionFiller mLongDescriptionFiller = null;
+    /** Prunes expired EPG programs */
+    private EpgRetention mEpgRetention = null;
+    /** Runs EPG tasks on EPG thread by priority */
+    private EpgTaskScheduler mEpgTaskScheduler = null;
+    /** Coalesces EPG callbacks into refreshes */
+    private EpgRefreshDispatcher mEpgRefreshDispatcher = null;
+    /** Present and following events of all services */
+    private NowNextCache mNowNextCache = null;
     /** Video destination rectangle */
     private final Rect mVideoRect = new Rect();
+    /** Initialization steps */
+    private final StartupGraph mStartup = new StartupGraph(STARTUP_THREADS);
+    /** Handler for starting deferred initialization steps */
+    private final Handler mStartupHandler = new Handler(Looper.getMainLooper());
+    /** Starts deferred initialization steps */
+    private final Runnable mStartDeferredRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mStartup.startDeferred();
+        }
+    };
 
     /**
      * Gets an instance of this manager
@@ -138,6 +192,7 @@ public class DtvManager {
     }
 
     public EpgManager getEpgManager() {
+        awaitStartupStep(STARTUP_EPG);
         return mEpgManager;
     }
 
@@ -151,24 +206,116 @@ public class DtvManager {
     }
 
     /**
-     * Initialize Service.
+     * Initialize Service. Independent steps run in parallel on background threads, EPG
+     * registration and IP channel list reading are deferred until the first tune.
      *
      * @throws InternalException
      */
     private void initializeDtvFunctionality() throws RemoteException {
-        mRouteManager = new RouteManager();
-        mSubtitleManager = new SubtitleManager(mDtvManager.getSubtitleControl());
-        mAudioManager = new AudioManager(mDtvManager.getAudioControl());
-        mChannelManager = new ChannelManager(sInstance, mContext);
-        mChannelManager.init();
-        mHandlerThread = new HandlerThread(TvService.class.getSimpleName());
-        mHandlerThread.start();
-        mEpgAcquisitionManager = new EpgAcquisitionManager(mContext);
-        mEpgAcquisitionManager.loadEpgPrefs();
-        mEpgHandler = new Handler(mHandlerThread.getLooper());
-        mEPGCallBack = new EpgCallback(this);
-        mEpgManager = new EpgManager(this);
-        mEpgManager.registerCallback(mEPGCallBack);
+        mStartup.addStep(STARTUP_ROUTES, new Runnable() {
+
+            @Override
+            public void run() {
+                mRouteManager = new RouteManager();
+            }
+        }, false);
+        mStartup.addStep(STARTUP_SUBTITLES, new Runnable() {
+
+            @Override
+            public void run() {
+                mSubtitleManager = new SubtitleManager(mDtvManager.getSubtitleControl());
+            }
+        }, false, STARTUP_ROUTES);
+        mStartup.addStep(STARTUP_AUDIO, new Runnable() {
+
+            @Override
+            public void run() {
+                mAudioManager = new AudioManager(mDtvManager.getAudioControl());
+            }
+        }, false);
+        mStartup.addStep(STARTUP_CHANNELS, new Runnable() {
+
+            @Override
+            public void run() {
+                mChannelManager = new ChannelManager(DtvManager.this, mContext);
+                mChannelManager.loadCachedChannels();
+            }
+        }, false, STARTUP_ROUTES);
+        mStartup.addStep(STARTUP_CHANNELS_VALIDATED, new Runnable() {
+
+            @Override
+            public void run() {
+                mChannelManager.validateChannels();
+            }
+        }, false, STARTUP_CHANNELS);
+        mStartup.addStep(STARTUP_IP_CHANNELS, new Runnable() {
+
+            @Override
+            public void run() {
+                mChannelManager.initIpChannels();
+            }
+        }, true, STARTUP_CHANNELS_VALIDATED);
+        mStartup.addStep(STARTUP_EPG_PREFS, new Runnable() {
+
+            @Override
+            public void run() {
+                mEpgAcquisitionManager = new EpgAcquisitionManager(mContext);
+                mEpgAcquisitionManager.loadEpgPrefs();
+            }
+        }, false);
+        mStartup.addStep(STARTUP_EPG, new Runnable() {
+
+            @Override
+            public void run() {
+                mHandlerThread = new HandlerThread(TvService.class.getSimpleName());
+                mHandlerThread.start();
+                mEpgHandler = new Handler(mHandlerThread.getLooper());
+                mEpgTaskScheduler = new EpgTaskScheduler(mEpgHandler);
+                mEpgRefreshDispatcher = new EpgRefreshDispatcher(mContext, DtvManager.this,
+                        mEpgTaskScheduler);
+                mNowNextCache = new NowNextCache(mContext, mEpgTaskScheduler);
+                mEPGCallBack = new EpgCallback(DtvManager.this);
+                mEpgManager = new EpgManager(DtvManager.this);
+                mEpgManager.registerCallback(mEPGCallBack);
+                mLongDescriptionFiller = new LongDescriptionFiller(mContext, DtvManager.this);
+                mEpgRetention = new EpgRetention(mContext, DtvManager.this);
+                mEpgRetention.start();
+            }
+        }, true, STARTUP_CHANNELS_VALIDATED, STARTUP_EPG_PREFS);
+        mStartup.start();
+        mStartupHandler.postDelayed(mStartDeferredRunnable, DEFERRED_STARTUP_DELAY);
+    }
+
+    /**
+     * Gets readiness of an initialization step
+     *
+     * @param step One of STARTUP_* step names
+     * @return Future that is done when the step has finished
+     */
+    public Future<Void> getReadiness(String step) {
+        return mStartup.getReadiness(step);
+    }
+
+    /**
+     * Waits until an initialization step has finished
+     *
+     * @param step One of STARTUP_* step names
+     * @return True if the step has finished successfully
+     */
+    public boolean awaitStartupStep(String step) {
+        return mStartup.await(step, STARTUP_STEP_TIMEOUT);
+    }
+
+    /**
+     * Called when a channel is tuned, starts deferred initialization steps
+     */
+    public void onTuned() {
+        mStartupHandler.removeCallbacks(mStartDeferredRunnable);
+        mStartup.startDeferred();
+        if (ExampleSwitches.ENABLE_LAZY_LONG_DESCRIPTION && mLongDescriptionFiller != null) {
+            // Descriptions around the new live channel come first
+            mLongDescriptionFiller.schedule();
+        }
     }
 
     public IDTVManager getDtvManager() {
@@ -187,9 +334,15 @@ public class DtvManager {
      */
     public void stop() throws InternalException {
         mLog.d("[stop]");
-        if (mSubtitleManager.isSubtitleActive()) {
+        // Does not wait for startup, nothing plays before routes are ready and deinit calls this
+        // after startup is shut down
+        if (mStartup.isDone(STARTUP_SUBTITLES) && mSubtitleManager != null
+                && mSubtitleManager.isSubtitleActive()) {
             mSubtitleManager.hideSubtitles();
         }
+        if (!mStartup.isDone(STARTUP_ROUTES) || mRouteManager == null) {
+            return;
+        }
         mDtvManager.getServiceControl().stopService(mRouteManager.getCurrentLiveRoute());
     }
 
@@ -217,7 +370,7 @@ public class DtvManager {
 
     private boolean startDvb(ChannelDescriptor channel) throws InternalException {
         mLog.d("[startDvb][" + channel.toString() + "]");
-        int route = mRouteManager.getActiveRouteByServiceType(channel.getType());
+        int route = getRouteManager().getActiveRouteByServiceType(channel.getType());
         if (route == RouteManager.EC_INVALID_ROUTE) {
             mLog.e("[startDvb][unknown source type: " + channel.getType() + "]");
             return false;
@@ -226,6 +379,7 @@ public class DtvManager {
         mRouteManager.updateCurrentLiveRoute(route);
         mDtvManager.getServiceControl().startService(route, MASTER_LIST_INDEX,
                 mCurrentlyActiveChannel);
+        mCurrentTransponder = readTransponder(mCurrentlyActiveChannel);
         if (ExampleSwitches.ENABLE_SCALE_FEATURE) {
             mDtvManager.getDisplayControl().scaleWindow(route, 200, 0, 1280, 720);
         } else {
@@ -239,12 +393,14 @@ public class DtvManager {
 
     private boolean startIp(ChannelDescriptor channel) throws InternalException {
         mLog.d("[startIp][" + channel.toString() + "]");
-        int route = mRouteManager.getLiveRouteIp();
+        int route = getRouteManager().getLiveRouteIp();
         if (route == RouteManager.EC_INVALID_ROUTE) {
             mLog.e("[startIp][unknown source type: " + channel.getType() + "]");
             return false;
         }
         mRouteManager.updateCurrentLiveRoute(mRouteManager.getLiveRouteIp());
+        // Read again from the active service of the new route when needed
+        mCurrentTransponder = UNKNOWN_TRANSPONDER;
         mDtvManager.getServiceControl().zapURL(mRouteManager.getLiveRouteIp(), channel.getUrl());
         if (ExampleSwitches.ENABLE_SCALE_FEATURE) {
             mDtvManager.getDisplayControl().scaleWindow(route, 0, 200, 640, 480);
@@ -256,15 +412,46 @@ public class DtvManager {
         return true;
     }
 
+    /**
+     * @return Service ID of currently active channel
+     */
+    public int getActiveServiceId() {
+        return mCurrentlyActiveChannel;
+    }
+
     public int getCurrentServiceIndex() {
         Service service = mDtvManager.getServiceControl().getActiveService(
-                mRouteManager.getCurrentLiveRoute());
+                getRouteManager().getCurrentLiveRoute());
         return service.getServiceIndex();
     }
 
-    public Long getCurrentTransponder() {
+    /**
+     * Gets frequency of current transponder. It is read from MW on tune, MW is asked here only
+     * if it is not known yet.
+     *
+     * @return Frequency of current transponder
+     */
+    public long getCurrentTransponder() {
+        long frequency = mCurrentTransponder;
+        if (frequency == UNKNOWN_TRANSPONDER) {
+            frequency = readTransponder(getCurrentServiceIndex());
+            mCurrentTransponder = frequency;
+        }
+        return frequency;
+    }
+
+    /**
+     * Reads frequency of a service from MW
+     *
+     * @param serviceIndex Index of service in master list
+     * @return Frequency, or {@link #UNKNOWN_TRANSPONDER} if service is not available
+     */
+    private long readTransponder(int serviceIndex) {
         ServiceDescriptor serviceDescriptor = mDtvManager.getServiceControl().getServiceDescriptor(
-                MASTER_LIST_INDEX, getCurrentServiceIndex());
+                MASTER_LIST_INDEX, serviceIndex);
+        if (serviceDescriptor == null) {
+            return UNKNOWN_TRANSPONDER;
+        }
         return (long) serviceDescriptor.getFrequency();
     }
 
@@ -356,8 +543,23 @@ public class DtvManager {
      */
     public void updateEpgList() {
         mLog.d("[updateEpgList]");
-        mEpgHandler.post(new EpgFull(mContext, mEpgAcquisitionManager, getCurrentServiceIndex(),
-                getCurrentTransponder()));
+        mEpgRefreshDispatcher.onFullRefresh();
+    }
+
+    /**
+     * Called in order to update EPG list of a service whose acquisition has finished
+     */
+    public void updateEpgList(int serviceIndex) {
+        mLog.d("[updateEpgList][service index: " + serviceIndex + "]");
+        mEpgRefreshDispatcher.onAcquisitionFinished(serviceIndex);
+    }
+
+    /**
+     * Called in order to update EPG list of a service whose events have changed
+     */
+    public void onEpgEventsChanged(int serviceIndex) {
+        mLog.d("[onEpgEventsChanged][service index: " + serviceIndex + "]");
+        mEpgRefreshDispatcher.onEventsChanged(serviceIndex);
     }
 
     /**
@@ -365,7 +567,7 @@ public class DtvManager {
      */
     public void updateNowNext(int filterID, int serviceIndex) {
         mLog.d("[updateNowNext][filter id: " + filterID + "][service index: " + serviceIndex + "]");
-        mEpgHandler.post(new EpgNowNext(mContext, mCurrentlyActiveChannel));
+        mNowNextCache.onAcquisitionFinished(serviceIndex);
     }
 
     /**
@@ -374,6 +576,7 @@ public class DtvManager {
      * @return Manager instance
      */
     public SubtitleManager getSubtitleManager() {
+        awaitStartupStep(STARTUP_SUBTITLES);
         return mSubtitleManager;
     }
 
@@ -383,6 +586,7 @@ public class DtvManager {
      * @return Manager instance
      */
     public AudioManager getAudioManager() {
+        awaitStartupStep(STARTUP_AUDIO);
         return mAudioManager;
     }
 
@@ -392,6 +596,7 @@ public class DtvManager {
      * @return Manager instance
      */
     public ChannelManager getChannelManager() {
+        awaitStartupStep(STARTUP_CHANNELS);
         return mChannelManager;
     }
 
@@ -401,6 +606,7 @@ public class DtvManager {
      * @return Manager instance
      */
     public RouteManager getRouteManager() {
+        awaitStartupStep(STARTUP_ROUTES);
         return mRouteManager;
     }
 
@@ -410,21 +616,89 @@ public class DtvManager {
      * @return EpgAcquisitionManager instance
      */
     public EpgAcquisitionManager getEpgAcquisitionManager() {
+        awaitStartupStep(STARTUP_EPG_PREFS);
         return mEpgAcquisitionManager;
     }
 
+    /**
+     * Gets long description filler
+     *
+     * @return LongDescriptionFiller instance
+     */
+    public LongDescriptionFiller getLongDescriptionFiller() {
+        awaitStartupStep(STARTUP_EPG);
+        return mLongDescriptionFiller;
+    }
+
+    /**
+     * Gets now/next cache
+     *
+     * @return NowNextCache instance
+     */
+    public NowNextCache getNowNextCache() {
+        awaitStartupStep(STARTUP_EPG);
+        return mNowNextCache;
+    }
+
+    /**
+     * Gets EPG task scheduler
+     *
+     * @return EpgTaskScheduler instance
+     */
+    public EpgTaskScheduler getEpgTaskScheduler() {
+        awaitStartupStep(STARTUP_EPG);
+        return mEpgTaskScheduler;
+    }
+
+    /**
+     * Gets EPG retention
+     *
+     * @return EpgRetention instance
+     */
+    public EpgRetention getEpgRetention() {
+        awaitStartupStep(STARTUP_EPG);
+        return mEpgRetention;
+    }
+
     /**
      * Deinit DVB manager
      */
     public void deinit() {
-        mEpgManager.unregisterCallback(mEPGCallBack);
+        mStartupHandler.removeCallbacks(mStartDeferredRunnable);
+        boolean epgStarted = mStartup.isDone(STARTUP_EPG);
+        mStartup.shutdown();
+        if (epgStarted && mEpgManager != null) {
+            mEpgManager.unregisterCallback(mEPGCallBack);
+        }
         try {
             stop();
         } catch (InternalException e) {
             e.printStackTrace();
         }
+        if (mChannelManager != null) {
+            mChannelManager.release();
+        }
+        if (mEpgAcquisitionManager != null) {
+            mEpgAcquisitionManager.saveEpgPrefs();
+        }
+        if (mLongDescriptionFiller != null) {
+            mLongDescriptionFiller.release();
+            mLongDescriptionFiller = null;
+        }
+        if (mEpgRetention != null) {
+            mEpgRetention.release();
+            mEpgRetention = null;
+        }
         sInstance = null;
-        mHandlerThread.quit();
-        mHandlerThread = null;
+        if (mEpgRefreshDispatcher != null) {
+            mEpgRefreshDispatcher.cancel();
+        }
+        if (mNowNextCache != null) {
+            mNowNextCache.clear();
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+            mHandlerThread = null;
+        }
     }
 }
@@ -12,103 +12,368 @@ package com.iwedia.example.tvinput.engine;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.util.ArrayMap;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.iwedia.example.tvinput.TvService;
 import com.iwedia.example.tvinput.engine.epg.EpgFull.IEpgAcquisitionListener;
 import com.iwedia.example.tvinput.engine.utils.EpgRunnable;
 import com.iwedia.example.tvinput.utils.Logger;
 
-import java.util.Calendar;
 import java.util.Map;
-import java.util.Set;
 
+/**
+ * Decides when EPG of a transponder is acquired again. For every transponder frequency it keeps
+ * time and duration of the last acquisition and the share of programs it changed. Interval
+ * until the next acquisition doubles when nothing changed and shrinks when programs changed, so
+ * transponders with static EPG are refreshed rarely. On top of that a global budget limits
+ * acquisitions to one at a time, a minimum gap between them and a number per hour. Times of
+ * the last acquisitions are written to shared preferences in the background, several updates
+ * coalesced into one write.
+ */
 public class EpgAcquisitionManager implements IEpgAcquisitionListener {
 
     /** Object used to write to logcat output */
     private final Logger mLog = new Logger(TvService.APP_NAME + EpgRunnable.class.getSimpleName(),
             Logger.DEBUG);
-    private static final Long TWO_MIN_IN_MILLIS = (long) (2 * 60 * 1000);
+    /** Shortest interval between two acquisitions of a transponder */
+    private static final long MIN_INTERVAL = 2 * 60 * 1000L;
+    /** Longest interval between two acquisitions of a transponder */
+    private static final long MAX_INTERVAL = 24 * 60 * 60 * 1000L;
+    /** Share of changed programs, in per mille, above which interval drops to minimum */
+    private static final int HIGH_CHANGE_RATE = 100;
+    /** Interval is at least this many times the last acquisition duration */
+    private static final int DURATION_FACTOR = 4;
+    /** Shortest gap between the end of one acquisition and the start of the next one */
+    private static final long MIN_GAP = 30 * 1000L;
+    /** Number of acquisitions allowed within {@link #BUDGET_PERIOD} */
+    private static final int BUDGET = 12;
+    private static final long BUDGET_PERIOD = 60 * 60 * 1000L;
+    /** Delay after which changed acquisition times are written */
+    private static final long PERSIST_DELAY = 5000;
     private Context mContext;
     private SharedPreferences mEPGPrefs = null;
-    private Map<String, Long> mLastAqvisitions = new ArrayMap<String, Long>();
-    private boolean mAcquisitionInProgress = false;
-    private Long mCurrentAcquisitionFrequency = 0L;
+    /** Acquisition state keyed by frequency */
+    private final TransponderTable mTransponders = new TransponderTable();
+    private volatile boolean mAcquisitionInProgress = false;
+    private volatile long mCurrentAcquisitionFrequency = 0L;
+    /** Start of the running acquisition */
+    private long mAcquisitionStart = 0;
+    /** End of the last acquisition of any transponder */
+    private long mLastAcquisitionEnd = 0;
+    /** Start times of recent acquisitions, used as ring buffer */
+    private final long[] mRecentStarts = new long[BUDGET];
+    private int mRecentStartsPosition = 0;
+    private final Handler mPersistHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPersistRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            saveEpgPrefs();
+        }
+    };
 
     public EpgAcquisitionManager(Context context) {
         mContext = context;
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Loads acquisition times with one read of shared preferences. Intervals are not stored,
+     * they start from the minimum and adapt again after the first acquisition.
+     */
     public void loadEpgPrefs() {
         mEPGPrefs = mContext.getSharedPreferences("EPG_Info", Context.MODE_PRIVATE);
-        try {
-            mLastAqvisitions = (Map<String, Long>) mEPGPrefs.getAll();
-            mLog.d("[loadEpgPrefs][last sqvisitions: " + mLastAqvisitions + "]");
-        } catch (NullPointerException e) {
-            mLog.d("[loadEpgPrefs][no EPG prefs data]");
+        Map<String, ?> all = mEPGPrefs.getAll();
+        synchronized (this) {
+            for (Map.Entry<String, ?> entry : all.entrySet()) {
+                if (!(entry.getValue() instanceof Long)) {
+                    continue;
+                }
+                try {
+                    int position = mTransponders.getOrAdd(Long.parseLong(entry.getKey()));
+                    mTransponders.mLastAcquisitions[position] = (Long) entry.getValue();
+                } catch (NumberFormatException e) {
+                    mLog.e("[loadEpgPrefs][invalid frequency: " + entry.getKey() + "]");
+                }
+            }
+            mLog.d("[loadEpgPrefs][transponders: " + mTransponders + "]");
         }
     }
 
-    public void saveEpgPrefs(Map<Long, Long> values) {
+    /**
+     * Writes changed acquisition times now, cancelling the pending write
+     */
+    public void saveEpgPrefs() {
+        mPersistHandler.removeCallbacks(mPersistRunnable);
+        if (mEPGPrefs == null) {
+            return;
+        }
         SharedPreferences.Editor editor = mEPGPrefs.edit();
-        editor.clear();
-        if (!mLastAqvisitions.isEmpty()) {
-            Set<String> keys = mLastAqvisitions.keySet();
-            for (String key : keys) {
-                editor.putLong(key, mLastAqvisitions.get(key));
-            }
+        int written;
+        synchronized (this) {
+            written = mTransponders.writeDirty(editor);
         }
-        editor.commit();
+        if (written > 0) {
+            editor.apply();
+        }
+        mLog.d("[saveEpgPrefs][written: " + written + "]");
     }
 
-    public void updateEPGInfo(Long key) {
-        String sKey = String.valueOf(key);
-        Long currentTime = Calendar.getInstance().getTimeInMillis();
-        mLastAqvisitions.put(sKey, currentTime);
-        SharedPreferences.Editor editor = mEPGPrefs.edit();
-        editor.putLong(sKey, currentTime);
-        editor.commit();
+    /**
+     * Records a finished acquisition and adapts the interval of its transponder
+     *
+     * @param frequency       Transponder frequency
+     * @param changedPrograms Number of changed programs, or {@link #CHANGES_UNKNOWN}
+     * @param totalPrograms   Number of programs received from MW
+     */
+    public void updateEPGInfo(long frequency, int changedPrograms, int totalPrograms) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            int position = mTransponders.getOrAdd(frequency);
+            long duration = mAcquisitionStart > 0 ? now - mAcquisitionStart : 0;
+            long interval = mTransponders.mIntervals[position];
+            if (changedPrograms == CHANGES_UNKNOWN) {
+                // Acquisition did not complete, try again soon with unchanged interval
+                mTransponders.mNextAcquisitions[position] = now + MIN_INTERVAL;
+            } else {
+                int changeRate = totalPrograms > 0
+                        ? (int) (changedPrograms * 1000L / totalPrograms) : 0;
+                if (changedPrograms == 0) {
+                    interval *= 2;
+                } else if (changeRate >= HIGH_CHANGE_RATE) {
+                    interval = MIN_INTERVAL;
+                } else {
+                    interval /= 2;
+                }
+                interval = Math.max(interval, DURATION_FACTOR * duration);
+                interval = Math.min(Math.max(interval, MIN_INTERVAL), MAX_INTERVAL);
+                mTransponders.mIntervals[position] = interval;
+                mTransponders.mChangeRates[position] = changeRate;
+                mTransponders.mLastAcquisitions[position] = now;
+                mTransponders.mNextAcquisitions[position] = now + interval;
+                mTransponders.mDirty[position] = true;
+            }
+            mTransponders.mDurations[position] = duration;
+            mAcquisitionStart = 0;
+            mLastAcquisitionEnd = now;
+            mAcquisitionInProgress = false;
+            mCurrentAcquisitionFrequency = 0L;
+            mLog.d("[updateEPGInfo][frequency: " + frequency + "][changed: " + changedPrograms
+                    + "/" + totalPrograms + "][duration: " + duration + " ms][interval: "
+                    + interval + " ms]");
+        }
+        mPersistHandler.removeCallbacks(mPersistRunnable);
+        mPersistHandler.postDelayed(mPersistRunnable, PERSIST_DELAY);
     }
 
+    /**
+     * Checks if EPG of current transponder should be acquired now
+     *
+     * @return True if acquisition is due and allowed by the global budget
+     */
     public boolean shouldStartEPGAquistion() {
-        long key = DtvManager.getInstance().getCurrentTransponder();
-        if (mAcquisitionInProgress && mCurrentAcquisitionFrequency == key) {
-            mLog.d("[]");
-            // Acquisition in progress for current freq
-            return false;
-        }
-        // if acquisition in progress for different freq, then just check time
-        // condition
-        if (mLastAqvisitions.isEmpty()) {
-            return true;
-        }
-        String sKey = String.valueOf(key);
-        Long lastAquisition = mLastAqvisitions.get(sKey);
-        if (lastAquisition == null) {
-            return true;
-        }
-        Long currentTime = Calendar.getInstance().getTimeInMillis();
-        // More than one day, then we should start
-        if (lastAquisition + TWO_MIN_IN_MILLIS <= currentTime) {
-            // Old acquisition
-            return true;
-        } else {
-            // up to date acquisition
-            return false;
+        long frequency = DtvManager.getInstance().getCurrentTransponder();
+        synchronized (this) {
+            return getDelay(frequency, System.currentTimeMillis()) == 0;
+        }
+    }
+
+    /**
+     * Asks to start acquisition of a transponder. If it is allowed, acquisition is counted as
+     * started right away, so concurrent requests do not both get through.
+     *
+     * @param frequency Transponder frequency
+     * @return 0 if acquisition may start now, otherwise time in milliseconds after which to ask
+     * again
+     */
+    public long requestAcquisition(long frequency) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            long delay = getDelay(frequency, now);
+            if (delay == 0) {
+                startAcquisition(frequency, now);
+            }
+            return delay;
         }
     }
 
+    /**
+     * @return True while EPG acquisition is running
+     */
+    public boolean isAcquisitionInProgress() {
+        return mAcquisitionInProgress;
+    }
+
     @Override
-    public void epgAcquisitionStarted(Long frequency) {
-        mAcquisitionInProgress = true;
-        mCurrentAcquisitionFrequency = frequency;
+    public void epgAcquisitionStarted(long frequency) {
+        synchronized (this) {
+            if (!mAcquisitionInProgress || mCurrentAcquisitionFrequency != frequency) {
+                startAcquisition(frequency, System.currentTimeMillis());
+            }
+        }
     }
 
     @Override
-    public void epgAcquisitionFinished(Long frequency) {
-        mAcquisitionInProgress = false;
-        mCurrentAcquisitionFrequency = 0L;
-        updateEPGInfo(frequency);
+    public void epgAcquisitionFinished(long frequency, int changedPrograms, int totalPrograms) {
+        updateEPGInfo(frequency, changedPrograms, totalPrograms);
+    }
+
+    private void startAcquisition(long frequency, long now) {
+        mCurrentAcquisitionFrequency = frequency;
+        mAcquisitionInProgress = true;
+        mAcquisitionStart = now;
+        mRecentStarts[mRecentStartsPosition] = now;
+        mRecentStartsPosition = (mRecentStartsPosition + 1) % BUDGET;
+    }
+
+    /**
+     * Gets time until a transponder may be acquired, must be called holding the lock
+     *
+     * @return 0 if acquisition may start now, otherwise delay in milliseconds
+     */
+    private long getDelay(long frequency, long now) {
+        if (mAcquisitionInProgress) {
+            // Asked again when the running acquisition finishes
+            return MIN_GAP;
+        }
+        long delay = 0;
+        int position = mTransponders.indexOf(frequency);
+        if (position >= 0) {
+            long next = mTransponders.mNextAcquisitions[position];
+            if (next == TransponderTable.NOT_SET) {
+                next = mTransponders.mLastAcquisitions[position] + MIN_INTERVAL;
+            }
+            delay = next - now;
+        }
+        delay = Math.max(delay, mLastAcquisitionEnd + MIN_GAP - now);
+        // Oldest of the recent starts must be out of the budget period
+        long oldestStart = mRecentStarts[mRecentStartsPosition];
+        if (oldestStart > 0) {
+            delay = Math.max(delay, oldestStart + BUDGET_PERIOD - now);
+        }
+        return Math.max(delay, 0);
+    }
+
+    /**
+     * Acquisition state of transponders, kept in parallel primitive arrays sorted by frequency.
+     * There are only as many entries as transponders, so lookup by binary search is fast and
+     * does not allocate.
+     */
+    private static final class TransponderTable {
+
+        static final long NOT_SET = Long.MIN_VALUE;
+        private long[] mFrequencies = new long[8];
+        /** Time of the last completed acquisition */
+        private long[] mLastAcquisitions = new long[8];
+        /** Time when the next acquisition is due */
+        private long[] mNextAcquisitions = new long[8];
+        /** Current interval between acquisitions */
+        private long[] mIntervals = new long[8];
+        /** Duration of the last acquisition */
+        private long[] mDurations = new long[8];
+        /** Changed programs in the last acquisition, per mille */
+        private int[] mChangeRates = new int[8];
+        /** Entries whose acquisition time changed since the last write */
+        private boolean[] mDirty = new boolean[8];
+        private int mSize = 0;
+
+        /**
+         * @return Position of frequency, added with minimum interval if not present
+         */
+        int getOrAdd(long frequency) {
+            int position = indexOf(frequency);
+            if (position >= 0) {
+                return position;
+            }
+            position = ~position;
+            if (mSize == mFrequencies.length) {
+                int capacity = mSize * 2;
+                mFrequencies = copyOf(mFrequencies, capacity);
+                mLastAcquisitions = copyOf(mLastAcquisitions, capacity);
+                mNextAcquisitions = copyOf(mNextAcquisitions, capacity);
+                mIntervals = copyOf(mIntervals, capacity);
+                mDurations = copyOf(mDurations, capacity);
+                int[] changeRates = new int[capacity];
+                System.arraycopy(mChangeRates, 0, changeRates, 0, mSize);
+                mChangeRates = changeRates;
+                boolean[] dirty = new boolean[capacity];
+                System.arraycopy(mDirty, 0, dirty, 0, mSize);
+                mDirty = dirty;
+            }
+            int moved = mSize - position;
+            System.arraycopy(mFrequencies, position, mFrequencies, position + 1, moved);
+            System.arraycopy(mLastAcquisitions, position, mLastAcquisitions, position + 1, moved);
+            System.arraycopy(mNextAcquisitions, position, mNextAcquisitions, position + 1, moved);
+            System.arraycopy(mIntervals, position, mIntervals, position + 1, moved);
+            System.arraycopy(mDurations, position, mDurations, position + 1, moved);
+            System.arraycopy(mChangeRates, position, mChangeRates, position + 1, moved);
+            System.arraycopy(mDirty, position, mDirty, position + 1, moved);
+            mFrequencies[position] = frequency;
+            mLastAcquisitions[position] = 0;
+            mNextAcquisitions[position] = NOT_SET;
+            mIntervals[position] = MIN_INTERVAL;
+            mDurations[position] = 0;
+            mChangeRates[position] = 0;
+            mDirty[position] = false;
+            mSize++;
+            return position;
+        }
+
+        /**
+         * Puts changed acquisition times into editor and marks them as written
+         *
+         * @return Number of written entries
+         */
+        int writeDirty(SharedPreferences.Editor editor) {
+            int written = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (mDirty[i]) {
+                    editor.putLong(String.valueOf(mFrequencies[i]), mLastAcquisitions[i]);
+                    mDirty[i] = false;
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        /**
+         * @return Position of frequency, or bitwise complement of its insertion point
+         */
+        int indexOf(long frequency) {
+            int low = 0;
+            int high = mSize - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (mFrequencies[middle] < frequency) {
+                    low = middle + 1;
+                } else if (mFrequencies[middle] > frequency) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return ~low;
+        }
+
+        private static long[] copyOf(long[] array, int capacity) {
+            long[] copy = new long[capacity];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("{");
+            for (int i = 0; i < mSize; i++) {
+                if (i > 0) {
+                    builder.append(", ");
+                }
+                builder.append(mFrequencies[i]).append("=[last: ").append(mLastAcquisitions[i])
+                        .append(", interval: ").append(mIntervals[i])
+                        .append(", duration: ").append(mDurations[i])
+                        .append(", change rate: ").append(mChangeRates[i]).append("]");
+            }
+            return builder.append('}').toString();
+        }
     }
 }
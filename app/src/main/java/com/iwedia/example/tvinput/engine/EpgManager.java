@@ -10,13 +10,13 @@
  */
 package com.iwedia.example.tvinput.engine;
 
-import android.net.ParseException;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.iwedia.dtv.epg.EpgEvent;
 import com.iwedia.dtv.epg.EpgEventType;
 import com.iwedia.dtv.epg.EpgMasterList;
-import com.iwedia.dtv.epg.EpgServiceFilter;
 import com.iwedia.dtv.epg.EpgTimeFilter;
 import com.iwedia.dtv.epg.IEpgCallback;
 import com.iwedia.dtv.epg.IEpgControl;
@@ -25,11 +25,13 @@ import com.iwedia.dtv.types.InternalException;
 import com.iwedia.dtv.types.TimeDate;
 import com.iwedia.example.tvinput.TvService;
 import com.iwedia.example.tvinput.data.ChannelDescriptor;
+import com.iwedia.example.tvinput.data.ChannelSnapshot;
+import com.iwedia.example.tvinput.data.RatingInfo;
+import com.iwedia.example.tvinput.engine.utils.EpgRunnable;
 import com.iwedia.example.tvinput.utils.Logger;
+import com.iwedia.example.tvinput.utils.TimeUtils;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.TimeZone;
 
 public class EpgManager {
 
@@ -37,60 +39,150 @@ public class EpgManager {
     private final Logger mLog = new Logger(TvService.APP_NAME + EpgManager.class.getSimpleName(),
             Logger.ERROR);
     private IEpgControl mEpgControl = null;
-    private ISetupControl mSetupControl = null;
+    /** Stream time, sampled from MW on TDT */
+    private final StreamClock mStreamClock;
     private int mEpgClientId = -1;
     private DtvManager mDTVManager = null;
-    private TimeDate mEpgStartTime;
-    private TimeDate mEpgEndTime;
+    private volatile TimeDate mEpgStartTime;
+    private volatile TimeDate mEpgEndTime;
     private static final int INITIAL_PREPARE_DELAY = 5000;
-    private Handler mHandler = new Handler();
+    /** Number of days covered by acquisition window, after the current one */
+    private static final int WINDOW_DAYS = 7;
+    /** Window is moved only when stream time crosses a multiple of this */
+    private static final long WINDOW_GRANULARITY = TimeUtils.MILLIS_PER_DAY;
+    /** Shortest time between two window creations */
+    private static final long MIN_WINDOW_INTERVAL = 60 * 1000L;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Guards window state, separate from the lock held while reading events */
+    private final Object mWindowLock = new Object();
+    /** MW master list of the current window */
+    private EpgMasterList mMasterList = null;
+    /** Version of channel snapshot master list was built from */
+    private int mMasterListVersion = -1;
+    /** Start of the current window in wall millis, see {@link TimeUtils#toWallMillis} */
+    private long mWindowStart = Long.MIN_VALUE;
+    /** Elapsed realtime of the last window creation */
+    private long mLastWindowCreation = 0;
+    /** Number of window creations since creation */
+    private int mWindowCreations = 0;
+    /** Number of window creations postponed by rate limit */
+    private int mWindowsRateLimited = 0;
+    /** Retries window creation postponed by rate limit */
+    private final Runnable mPrepareRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            prepareGetEpgEvents();
+        }
+    };
 
     public EpgManager(DtvManager dtvManager) {
         mDTVManager = dtvManager;
+        ISetupControl setupControl = null;
         try {
             mEpgControl = dtvManager.getDtvManager().getEpgControl();
-            mSetupControl = dtvManager.getDtvManager().getSetupControl();
+            setupControl = dtvManager.getDtvManager().getSetupControl();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        mStreamClock = new StreamClock(setupControl);
     }
 
-    private void createWindow(TimeDate startTimeOfAcquisition, int durationInHours) {
-        mLog.d("[prepareGetEpgEvents] start=" + startTimeOfAcquisition + " len=" + durationInHours);
-        try {
-            int dtvServices = mDTVManager.getChannelManager().getDtvChannelListSize();
-            ArrayList<Integer> masterListIndexes = new ArrayList<Integer>();
-            mLog.d("[prepareGetEpgEvents] dtvServices=" + dtvServices);
-            for (int i = 0; i < dtvServices; i++) {
-                ChannelDescriptor channel = mDTVManager.getChannelManager().getChannelByIndex(i);
-                mLog.d("[prepareGetEpgEvents] channel[" + i + "]=" + channel);
-                if (channel != null) {
-                    masterListIndexes.add(channel.getServiceId());
-                }
+    /**
+     * Builds MW master list from DTV channels of a snapshot
+     */
+    private EpgMasterList buildMasterList(ChannelSnapshot snapshot, int dtvServices) {
+        ArrayList<Integer> masterListIndexes = new ArrayList<Integer>();
+        mLog.d("[buildMasterList] dtvServices=" + dtvServices);
+        for (int i = 0; i < dtvServices; i++) {
+            ChannelDescriptor channel = snapshot.getChannel(i);
+            if (channel != null) {
+                masterListIndexes.add(channel.getServiceId());
             }
-            EpgMasterList epgMasterList = new EpgMasterList(masterListIndexes);
-            mEpgControl.createWindow(epgMasterList, startTimeOfAcquisition, durationInHours);
+        }
+        return new EpgMasterList(masterListIndexes);
+    }
+
+    /**
+     * Moves MW acquisition window to the current day. Called on every TDT, but the window is
+     * created again only when stream time crosses a {@link #WINDOW_GRANULARITY} boundary or the
+     * channel list changes, and not more often than {@link #MIN_WINDOW_INTERVAL}. Master list
+     * is built again only when the channel list changes.
+     */
+    public void prepareGetEpgEvents() {
+        synchronized (mWindowLock) {
+            prepareWindowLocked();
+        }
+    }
+
+    private void prepareWindowLocked() {
+        mHandler.removeCallbacks(mPrepareRunnable);
+        TimeUtils.checkTimeZone();
+        long wallNow = mStreamClock.getWallMillis();
+        long windowStart = wallNow - (wallNow % WINDOW_GRANULARITY);
+        ChannelManager channelManager = mDTVManager.getChannelManager();
+        ChannelSnapshot snapshot = channelManager.getSnapshot();
+        if (windowStart == mWindowStart && snapshot.getVersion() == mMasterListVersion) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mLastWindowCreation != 0 && now - mLastWindowCreation < MIN_WINDOW_INTERVAL) {
+            mWindowsRateLimited++;
+            mLog.d("[prepareGetEpgEvents][rate limited, " + mWindowsRateLimited + " times]");
+            mHandler.postDelayed(mPrepareRunnable,
+                    mLastWindowCreation + MIN_WINDOW_INTERVAL - now);
+            return;
+        }
+        if (mMasterList == null || snapshot.getVersion() != mMasterListVersion) {
+            mMasterList = buildMasterList(snapshot, channelManager.getDtvChannelListSize());
+            mMasterListVersion = snapshot.getVersion();
+        }
+        // Window covers whole days, from the first second of the current day
+        TimeDate startTime = new TimeDate(1, 0, 0, 1, 1, 1970);
+        TimeUtils.setWallMillis(startTime, windowStart + 1000);
+        TimeDate endTime = new TimeDate(59, 59, 23, 1, 1, 1970);
+        TimeUtils.setWallMillis(endTime, windowStart + (WINDOW_DAYS + 1) * TimeUtils.MILLIS_PER_DAY
+                - 1000);
+        mLog.d("[prepareGetEpgEvents] start=" + startTime + " end=" + endTime);
+        try {
+            mEpgControl.createWindow(mMasterList, startTime, WINDOW_DAYS * 24);
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
+            return;
         } catch (InternalException e) {
             e.printStackTrace();
+            return;
         }
+        mEpgStartTime = startTime;
+        mEpgEndTime = endTime;
+        mWindowStart = windowStart;
+        mLastWindowCreation = now;
+        mWindowCreations++;
+        mLog.i("[prepareGetEpgEvents][window created " + mWindowCreations + " times]");
     }
 
-    public void prepareGetEpgEvents() {
-        mLog.d("[prepareGetEpgEvents]");
-        TimeDate lCurrentTime = mSetupControl.getTimeDate();
-        Calendar lllCalendar = lCurrentTime.getCalendar();
-        mEpgStartTime = new TimeDate(1, 0, 0,
-                lllCalendar.get(Calendar.DAY_OF_MONTH),
-                lllCalendar.get(Calendar.MONTH) + 1, lllCalendar.get(Calendar.YEAR));
-        lllCalendar.add(Calendar.HOUR, 7 * 24);
-        mEpgEndTime = new TimeDate(59, 59, 23,
-                lllCalendar.get(Calendar.DAY_OF_MONTH),
-                lllCalendar.get(Calendar.MONTH) + 1, lllCalendar.get(Calendar.YEAR));
-        mLog.d("[createWindow][start]");
-        createWindow(mEpgStartTime, 7 * 24);
-        mLog.d("[createWindow][end]");
+    /**
+     * Samples stream time and moves the window if needed, called when TDT is received
+     */
+    public void onTdtChanged() {
+        mStreamClock.sample();
+        prepareGetEpgEvents();
+    }
+
+    /**
+     * @return Stream clock
+     */
+    public StreamClock getStreamClock() {
+        return mStreamClock;
+    }
+
+    /**
+     * @return Number of times MW window was created
+     */
+    public int getWindowCreations() {
+        synchronized (mWindowLock) {
+            return mWindowCreations;
+        }
     }
 
     /**
@@ -129,166 +221,107 @@ public class EpgManager {
     }
 
     /**
-     * Returns EPG events for desired service index and desired day.
-     *
-     * @param indexInMasterList Index of desired service in master list.
-     * @return List of EPG events.
+     * Receives EPG events of a batch query, see {@link #getEpgEvents(int[], IEpgEventsReceiver)}
      */
-    public synchronized ArrayList<EpgEvent> getEpgEvents(int indexInMasterList)
-            throws ParseException,
-            IllegalArgumentException, InternalException {
-        ArrayList<EpgEvent> events = new ArrayList<EpgEvent>();
-        if (mEpgStartTime == null || mEpgEndTime == null) {
-            return events;
-        }
-        EpgEvent lEvent = null;
-        int lEpgEventsSize = 0;
-        TimeDate lCurrentTimeFromStream = mSetupControl.getTimeDate();
-        Calendar lCalendarTimeFromStream = lCurrentTimeFromStream.getCalendar();
-        Calendar lTimeOnDevice = Calendar.getInstance();
-        long diffTime = lTimeOnDevice.getTimeInMillis() - lCalendarTimeFromStream.getTimeInMillis();
-        final double diffDays = Math.round((float) diffTime / ((float) 1000 * 60 * 60 * 24));
+    public interface IEpgEventsReceiver {
+
         /**
-         * Create Time Filter
+         * Called once for every requested service, in order of request
+         *
+         * @param indexInMasterList Index of service in master list
+         * @param events            Events of the service in EPG window
+         * @return False to stop the batch, remaining services are not read
          */
+        boolean onServiceEvents(int indexInMasterList, ArrayList<EpgEvent> events);
+    }
+
+    /**
+     * Returns EPG events of several services for the whole EPG window. Time filter is set and
+     * acquisition is started only once for all services. Events are handed over service by service,
+     * so the caller can store them before the next service is read.
+     *
+     * @param indexesInMasterList Indexes of desired services in master list.
+     * @param receiver            Receives events of every service.
+     * @return Number of services handed over to receiver.
+     */
+    public synchronized int getEpgEvents(int[] indexesInMasterList, IEpgEventsReceiver receiver)
+            throws IllegalArgumentException, InternalException {
+        if (mEpgStartTime == null || mEpgEndTime == null || indexesInMasterList.length == 0) {
+            return 0;
+        }
+        int diffDays = getStreamDayDifference();
         EpgTimeFilter lEpgTimeFilter = new EpgTimeFilter();
         lEpgTimeFilter.setTime(mEpgStartTime, mEpgEndTime);
         mEpgControl.setFilter(mEpgClientId, lEpgTimeFilter);
-        /**
-         * Set Service Filter.
-         */
-        EpgServiceFilter lEpgServiceFilter = new EpgServiceFilter();
-        lEpgServiceFilter.setServiceIndex(indexInMasterList);
-        mEpgControl.setFilter(mEpgClientId, lEpgServiceFilter);
+        // Events are read per service index, so no service filter is set
         mEpgControl.startAcquisition(mEpgClientId);
-        lEpgEventsSize = mEpgControl.getAvailableEventsNumber(
+        int services = 0;
+        try {
+            for (int indexInMasterList : indexesInMasterList) {
+                ArrayList<EpgEvent> events = new ArrayList<EpgEvent>();
+                readEvents(indexInMasterList, diffDays, events);
+                services++;
+                if (!receiver.onServiceEvents(indexInMasterList, events)) {
+                    mLog.d("[getEpgEvents][batch stopped after " + services + " services]");
+                    break;
+                }
+            }
+        } finally {
+            mEpgControl.stopAcquisition(mEpgClientId);
+        }
+        return services;
+    }
+
+    /**
+     * Reads all acquired events of one service, acquisition must be started
+     */
+    private void readEvents(int indexInMasterList, int diffDays, ArrayList<EpgEvent> events) {
+        int lEpgEventsSize = mEpgControl.getAvailableEventsNumber(
                 mEpgClientId, indexInMasterList);
         for (int eventIndex = 0; eventIndex < lEpgEventsSize; eventIndex++) {
-            // if(mDTVManager.getScanManager().isScanStarted()){
-            // break;
-            // }
-            lEvent = mEpgControl.getRequestedEvent(mEpgClientId, indexInMasterList, eventIndex);
+            EpgEvent lEvent = mEpgControl.getRequestedEvent(mEpgClientId, indexInMasterList,
+                    eventIndex);
             if (lEvent != null) {
-                // Logger.log("Event BEFORE: " + lEvent.getName() + ", " +
-                // lEvent.getStartTime().toString() + " - " +
-                // lEvent.getEndTime());
-                changeEventTimes(lEvent, (int) diffDays);
+                changeEventTimes(lEvent, diffDays);
                 events.add(lEvent);
-                // Logger.log("Event AFTER: " + lEvent.getName() + ", " +
-                // lEvent.getStartTime().toString() + " - " + lEvent
-                // .getEndTime() + ", diffDays: " + diffDays);
             }
         }
-        mEpgControl.stopAcquisition(mEpgClientId);
-        return events;
-    }
-
-    private void changeEventTimes(EpgEvent event, int dayDifference) {
-        TimeDate startTimeDate = event.getStartTime();
-        TimeDate endTimeDate = event.getEndTime();
-        final Calendar startTime = Calendar.getInstance(TimeZone.getDefault());
-        final Calendar endTime = Calendar.getInstance(TimeZone.getDefault());
-        // Get time from event
-        startTime.setTimeInMillis(startTimeDate.getCalendar().getTimeInMillis());
-        endTime.setTimeInMillis(endTimeDate.getCalendar().getTimeInMillis());
-        // Add day difference to time
-        startTime.add(Calendar.DATE, dayDifference);
-        endTime.add(Calendar.DATE, dayDifference);
-        // Set new times to event date and time
-        setEventDate(startTimeDate, startTime);
-        setEventDate(endTimeDate, endTime);
     }
 
     /**
-     * For various demos, time from stream is not current date so we must set date of every EpgEvent
-     * to be for current date
-     *
-     * @param event           EpgEvent that contains start and end times
-     * @param day             Day of week for which we are fetching EPG data
-     * @param isForDesiredDay If event ends in another day (Guide is fetched for today but EpgEvent
-     *                        ends in tomorrow)
+     * Number of days between time on device and time from stream. Demo streams carry old dates,
+     * events are moved by this number of days.
      */
-    private void changeEventTimes(EpgEvent event, int day, boolean isForDesiredDay) {
-        /**
-         * We must calculate new start time and end time. If transport stream is not live this will
-         * fix its time in EPG events
-         */
-        boolean changeOnlyEndTime = true;
-        Calendar curentTime = Calendar.getInstance();
-        final Calendar startTime = Calendar.getInstance(TimeZone.getDefault());
-        final Calendar endTime = Calendar.getInstance(TimeZone.getDefault());
-        startTime.setTimeInMillis(event.getStartTime().getCalendar().getTimeInMillis());
-        endTime.setTimeInMillis(event.getEndTime().getCalendar().getTimeInMillis());
-        if (!isForDesiredDay) {
-            // Start time is in one day and end time is in different day
-            if (startTime.get(Calendar.DAY_OF_MONTH) != endTime
-                    .get(Calendar.DAY_OF_MONTH)) {
-                changeOnlyEndTime = true;
-            } else {
-                changeOnlyEndTime = false;
-            }
-        }
-        // start time
-        startTime.set(Calendar.YEAR, curentTime.get(Calendar.YEAR));
-        startTime.set(Calendar.MONTH, curentTime.get(Calendar.MONTH));
-        startTime.set(Calendar.DAY_OF_MONTH,
-                curentTime.get(Calendar.DAY_OF_MONTH));
-        startTime.set(Calendar.MILLISECOND, 0);
-        startTime.set(Calendar.SECOND, 0);
-        // End time
-        endTime.set(Calendar.YEAR, curentTime.get(Calendar.YEAR));
-        endTime.set(Calendar.MONTH, curentTime.get(Calendar.MONTH));
-        endTime.set(Calendar.DAY_OF_MONTH,
-                curentTime.get(Calendar.DAY_OF_MONTH));
-        endTime.set(Calendar.MILLISECOND, 0);
-        endTime.set(Calendar.SECOND, 0);
-        if (!isForDesiredDay) {
-            // Start time is in one day and end time is in different day
-            endTime.add(Calendar.DAY_OF_MONTH, 1);
-            // change start time too
-            if (!changeOnlyEndTime) {
-                startTime.add(Calendar.DAY_OF_MONTH, 1);
-            }
-        }
-        // add day
-        endTime.add(Calendar.DAY_OF_MONTH, day);
-        startTime.add(Calendar.DAY_OF_MONTH, day);
-        // Set new times to event date and time
-        setEventDate(event.getStartTime(), startTime);
-        setEventDate(event.getEndTime(), endTime);
+    private int getStreamDayDifference() {
+        TimeUtils.checkTimeZone();
+        return Math.round((float) -mStreamClock.getOffset() / TimeUtils.MILLIS_PER_DAY);
+    }
+
+    private void changeEventTimes(EpgEvent event, int dayDifference) {
+        shiftDays(event.getStartTime(), dayDifference);
+        shiftDays(event.getEndTime(), dayDifference);
     }
 
     /**
-     * Sets desired date to start and end time of event
+     * Moves time by given number of days keeping its wall-clock time, seconds are cleared
      */
-    private void setEventDate(TimeDate date, Calendar calendar) {
-        date.setSec(0);
-        date.setMin(calendar.get(Calendar.MINUTE));
-        date.setHour(calendar.get(Calendar.HOUR_OF_DAY));
-        date.setDay(calendar.get(Calendar.DAY_OF_MONTH));
-        date.setMonth(calendar.get(Calendar.MONTH) + 1);
-        date.setYear(calendar.get(Calendar.YEAR));
+    private static void shiftDays(TimeDate timeDate, int days) {
+        long wallMillis = TimeUtils.toWallMillis(timeDate) + days * TimeUtils.MILLIS_PER_DAY;
+        TimeUtils.setWallMillis(timeDate, wallMillis - wallMillis % TimeUtils.MILLIS_PER_MINUTE);
     }
 
     /**
      * Find event that is running and return its index.
      */
     public int getRunningEventIndex(ArrayList<EpgEvent> events) {
-        TimeDate lCurrentTime;
-        try {
-            lCurrentTime = mDTVManager.getDtvManager().getSetupControl()
-                    .getTimeDate();
-            Calendar calendarCurrent = lCurrentTime.getCalendar();
-            for (int i = 0; i < events.size(); i++) {
-                EpgEvent event = events.get(i);
-                if (calendarCurrent.after(event.getStartTime().getCalendar())
-                        && calendarCurrent.before(event.getEndTime()
-                        .getCalendar())) {
-                    return i;
-                }
+        TimeUtils.checkTimeZone();
+        long now = mStreamClock.getTimeMillis();
+        for (int i = 0; i < events.size(); i++) {
+            EpgEvent event = events.get(i);
+            if (TimeUtils.toEpochMillis(event.getStartTime()) <= now
+                    && now < TimeUtils.toEpochMillis(event.getEndTime())) {
+                return i;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
         return 0;
     }
@@ -297,16 +330,44 @@ public class EpgManager {
         return mEpgClientId;
     }
 
+    /**
+     * Gets present or following event from now/next cache, without MW access
+     *
+     * @param serviceIndex Service index
+     * @param epgEventType Present or following
+     * @return Event, or null if not acquired yet
+     */
     public EpgEvent getPresentFollowingEvent(int serviceIndex,
             EpgEventType epgEventType) {
-        return null;
+        return mDTVManager.getNowNextCache().get(serviceIndex, epgEventType);
+    }
+
+    /**
+     * Gets rating of the event running on a service from now/next cache, without MW or
+     * database access
+     *
+     * @param serviceIndex Service index
+     * @return Rating info expiring at the end of the event in device time, or null if running
+     *         event is not known
+     */
+    public RatingInfo getRunningEventRating(int serviceIndex) {
+        TimeUtils.checkTimeZone();
+        long now = mStreamClock.getTimeMillis();
+        EpgEvent event = mDTVManager.getNowNextCache().getEventAt(serviceIndex, now);
+        if (event == null) {
+            return null;
+        }
+        // Event times are stream times, demo streams carry old dates
+        long expires = TimeUtils.toEpochMillis(event.getEndTime()) - now
+                + System.currentTimeMillis();
+        return new RatingInfo(EpgRunnable.createRating(event.getParentalRate()), expires);
     }
 
     /**
-     * Get Current Time and Date.
+     * Get Current Time and Date of the stream, without MW access.
      */
     public TimeDate getCurrentTimeDate() {
-        return mDTVManager.getDtvManager().getSetupControl().getTimeDate();
+        return mStreamClock.getTimeDate();
     }
 
     public String getEventExtendedDescription(int eventId, int serviceIndex) {
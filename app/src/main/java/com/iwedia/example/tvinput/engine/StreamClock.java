@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine;
+
+import android.os.SystemClock;
+
+import com.iwedia.dtv.setup.ISetupControl;
+import com.iwedia.dtv.types.TimeDate;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+import com.iwedia.example.tvinput.utils.TimeUtils;
+
+/**
+ * Time of the stream without MW calls. MW time is sampled only when TDT is received and stored
+ * with elapsed realtime of the sample, stream time is then computed from elapsed realtime, so
+ * it keeps running while device clock is changed. Drift between computed time and the next
+ * sample is recorded, it shows how far computed time was off when TDT corrected it.
+ * <p>
+ * MW time has second resolution, so computed time and drift are accurate to about a second.
+ */
+public class StreamClock {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + StreamClock.class.getSimpleName(), Logger.ERROR);
+    private final ISetupControl mSetupControl;
+    /** True once MW time was sampled */
+    private boolean mSampled = false;
+    /** Stream time of the last sample in wall millis, see {@link TimeUtils#toWallMillis} */
+    private long mAnchorWall = 0;
+    /** Elapsed realtime of the last sample */
+    private long mAnchorRealtime = 0;
+    /** Number of samples since creation */
+    private int mSamples = 0;
+    /** Drift found by the last sample, in milliseconds */
+    private long mLastDrift = 0;
+    /** Largest absolute drift found by a sample, in milliseconds */
+    private long mMaxDrift = 0;
+
+    /**
+     * Constructor
+     *
+     * @param setupControl MW setup control, source of stream time
+     */
+    public StreamClock(ISetupControl setupControl) {
+        mSetupControl = setupControl;
+    }
+
+    /**
+     * Samples MW time, called when TDT is received
+     */
+    public synchronized void sample() {
+        if (mSetupControl == null) {
+            return;
+        }
+        TimeDate timeDate;
+        try {
+            timeDate = mSetupControl.getTimeDate();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        if (timeDate == null) {
+            return;
+        }
+        long realtime = SystemClock.elapsedRealtime();
+        long wall = TimeUtils.toWallMillis(timeDate);
+        if (mSampled) {
+            mLastDrift = wall - (mAnchorWall + realtime - mAnchorRealtime);
+            mMaxDrift = Math.max(mMaxDrift, Math.abs(mLastDrift));
+        }
+        mAnchorWall = wall;
+        mAnchorRealtime = realtime;
+        mSampled = true;
+        mSamples++;
+        mLog.d("[sample]" + this);
+    }
+
+    /**
+     * @return Stream time in wall millis, see {@link TimeUtils#toWallMillis}
+     */
+    public synchronized long getWallMillis() {
+        if (!mSampled) {
+            sample();
+            if (!mSampled) {
+                // MW time is not available, device time is used until it is
+                long now = System.currentTimeMillis();
+                return now + TimeUtils.getWallOffset(now);
+            }
+        }
+        return mAnchorWall + SystemClock.elapsedRealtime() - mAnchorRealtime;
+    }
+
+    /**
+     * @return Stream time in UTC millis
+     */
+    public long getTimeMillis() {
+        return TimeUtils.wallToEpochMillis(getWallMillis());
+    }
+
+    /**
+     * @return Stream time as MW time
+     */
+    public TimeDate getTimeDate() {
+        TimeDate timeDate = new TimeDate(0, 0, 0, 1, 1, 1970);
+        TimeUtils.setWallMillis(timeDate, getWallMillis());
+        return timeDate;
+    }
+
+    /**
+     * @return Stream time minus device time in milliseconds, negative for demo streams carrying
+     *         old dates
+     */
+    public long getOffset() {
+        return getTimeMillis() - System.currentTimeMillis();
+    }
+
+    /**
+     * @return Drift found by the last sample in milliseconds, positive if stream was ahead of
+     *         computed time
+     */
+    public synchronized long getLastDrift() {
+        return mLastDrift;
+    }
+
+    /**
+     * @return Largest absolute drift found by a sample in milliseconds
+     */
+    public synchronized long getMaxDrift() {
+        return mMaxDrift;
+    }
+
+    /**
+     * @return Number of MW time samples since creation
+     */
+    public synchronized int getSamples() {
+        return mSamples;
+    }
+
+    /**
+     * @return Sample count and drift, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "[samples: " + mSamples + "][last drift: " + mLastDrift + " ms][max drift: "
+                + mMaxDrift + " ms]";
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.text.TextUtils;
+
+import com.iwedia.dtv.service.IServiceControl;
+import com.iwedia.dtv.service.ServiceDescriptor;
+import com.iwedia.dtv.service.ServiceType;
+import com.iwedia.dtv.service.SourceType;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.data.ChannelDescriptor;
+import com.iwedia.example.tvinput.data.ChannelIndex;
+import com.iwedia.example.tvinput.data.ChannelSnapshot;
+import com.iwedia.example.tvinput.utils.ChannelUtils;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Stores services found by a running scan into TvProvider in small batches, so they become
+ * visible to TIF before the scan has finished. Stored channels get provisional display numbers
+ * after the existing ones; final numbering is done by channel list refresh at the end of scan.
+ */
+class StreamingInstaller {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + StreamingInstaller.class.getSimpleName(), Logger.ERROR);
+    /** Number of staged services that triggers immediate commit */
+    private static final int BATCH_SIZE = 16;
+    /** Maximum time a staged service waits for commit */
+    private static final long FLUSH_DELAY = 2000;
+    /** Channel manager that owns the channel list */
+    private final ChannelManager mChannelManager;
+    /** MW service control used for resolving service IDs */
+    private final IServiceControl mServiceControl;
+    /** Services waiting for commit */
+    private final ArrayList<StagedService> mStaged = new ArrayList<StagedService>();
+    /**
+     * Services not listed by MW yet, retried with the next batch. Used only on commit thread.
+     */
+    private final ArrayList<StagedService> mUnresolved = new ArrayList<StagedService>();
+    /** Thread on which batches are committed */
+    private HandlerThread mThread;
+    /** Handler of commit thread */
+    private Handler mHandler;
+    /** True while scan is running */
+    private volatile boolean mActive = false;
+    /** Number of channels committed during current scan */
+    private int mCommittedCount;
+    /** Number of MW master list entries read into {@link #mUnassigned} */
+    private int mListedCount;
+    /**
+     * Master indexes of listed services not yet given to a channel, by service name in list
+     * order. Used only on commit thread.
+     */
+    private final HashMap<String, ArrayList<Integer>> mUnassigned =
+            new HashMap<String, ArrayList<Integer>>();
+
+    /**
+     * Service reported by scan
+     */
+    private static class StagedService {
+
+        private final SourceType mType;
+        private final String mName;
+        private final ServiceType mServiceType;
+
+        StagedService(SourceType type, String name, ServiceType serviceType) {
+            mType = type;
+            mName = name;
+            mServiceType = serviceType;
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param channelManager Channel manager that owns the channel list
+     * @param serviceControl MW service control
+     */
+    StreamingInstaller(ChannelManager channelManager, IServiceControl serviceControl) {
+        mChannelManager = channelManager;
+        mServiceControl = serviceControl;
+    }
+
+    /**
+     * Starts accepting services, called when scan is started
+     */
+    synchronized void start() {
+        stop();
+        mStaged.clear();
+        mUnresolved.clear();
+        mCommittedCount = 0;
+        mListedCount = 0;
+        mUnassigned.clear();
+        mThread = new HandlerThread(StreamingInstaller.class.getSimpleName());
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mActive = true;
+    }
+
+    /**
+     * Stops accepting services and drops the ones not committed yet. Called before final
+     * channel list refresh, which stores them anyway.
+     */
+    synchronized void stop() {
+        if (!mActive) {
+            return;
+        }
+        mActive = false;
+        mStaged.clear();
+        mHandler.removeCallbacks(mFlushRunnable);
+        mThread.quit();
+        mThread = null;
+        mHandler = null;
+        mLog.i("[stop][committed " + mCommittedCount + " channels during scan]");
+    }
+
+    boolean isActive() {
+        return mActive;
+    }
+
+    /**
+     * Stages a service found by scan. Channel list refresh at the end of scan gives the service
+     * the same source type, so its row is kept.
+     *
+     * @param name        Service name
+     * @param serviceType Service type
+     * @param sourceType  Source type of the route which found the service
+     */
+    synchronized void stage(String name, ServiceType serviceType, SourceType sourceType) {
+        if (!mActive || TextUtils.isEmpty(name)) {
+            return;
+        }
+        mStaged.add(new StagedService(sourceType, name, serviceType));
+        if (mStaged.size() >= BATCH_SIZE) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+        } else if (mStaged.size() == 1) {
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+        }
+    }
+
+    /**
+     * Commits staged services, runs on commit thread
+     */
+    private void flush() {
+        ArrayList<StagedService> staged;
+        synchronized (this) {
+            if (!mActive || mStaged.isEmpty()) {
+                return;
+            }
+            staged = new ArrayList<StagedService>(mStaged);
+            mStaged.clear();
+        }
+        staged.addAll(0, mUnresolved);
+        mUnresolved.clear();
+        ChannelSnapshot snapshot = mChannelManager.getSnapshot();
+        // Services already in channel list are skipped by their service IDs
+        HashSet<Integer> usedServiceIds = new HashSet<Integer>();
+        int nextNumber = 1;
+        for (ChannelDescriptor channel : snapshot.getChannels()) {
+            usedServiceIds.add(channel.getServiceId());
+            nextNumber = Math.max(nextNumber,
+                    ChannelIndex.parseDisplayNumber(channel.getDisplayNumber()) + 1);
+        }
+        readMasterList();
+        ArrayList<ChannelDescriptor> channels = new ArrayList<ChannelDescriptor>();
+        for (StagedService service : staged) {
+            int serviceId = resolveServiceId(service.mName, usedServiceIds);
+            if (serviceId == ChannelDescriptor.EC_NOT_AVAILABLE) {
+                mUnresolved.add(service);
+                continue;
+            }
+            channels.add(new ChannelDescriptor(ChannelUtils.formatDisplayNumber(nextNumber++),
+                    service.mName, serviceId, service.mType, service.mServiceType));
+        }
+        if (channels.isEmpty()) {
+            return;
+        }
+        if (mChannelManager.appendChannels(channels, this)) {
+            mCommittedCount += channels.size();
+            mLog.d("[flush][committed " + channels.size() + " channels]");
+        }
+    }
+
+    /**
+     * Reads MW master list entries added since the previous batch. Found services are appended
+     * to the list, so every entry is read once per scan.
+     */
+    private void readMasterList() {
+        int count = mServiceControl.getServiceListCount(DtvManager.MASTER_LIST_INDEX);
+        if (count < mListedCount) {
+            // List was rebuilt by MW, read it again
+            mListedCount = 0;
+            mUnassigned.clear();
+        }
+        for (; mListedCount < count; mListedCount++) {
+            ServiceDescriptor descriptor = mServiceControl.getServiceDescriptor(
+                    DtvManager.MASTER_LIST_INDEX, mListedCount);
+            if (descriptor == null) {
+                // Entry is not available yet, it is read with the next batch
+                break;
+            }
+            if (TextUtils.isEmpty(descriptor.getName())) {
+                continue;
+            }
+            ArrayList<Integer> indexes = mUnassigned.get(descriptor.getName());
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>(1);
+                mUnassigned.put(descriptor.getName(), indexes);
+            }
+            indexes.add(descriptor.getMasterIndex());
+        }
+    }
+
+    /**
+     * Takes the first listed service with given name that is not used by a channel yet, so
+     * services with the same name are given to channels in list order
+     *
+     * @param name           Service name
+     * @param usedServiceIds Service IDs of channels in channel list
+     * @return Service ID or {@link ChannelDescriptor#EC_NOT_AVAILABLE} if MW does not list an
+     * unused service with given name yet
+     */
+    private int resolveServiceId(String name, HashSet<Integer> usedServiceIds) {
+        ArrayList<Integer> indexes = mUnassigned.get(name);
+        while (indexes != null && !indexes.isEmpty()) {
+            int serviceId = indexes.remove(0);
+            if (usedServiceIds.add(serviceId)) {
+                return serviceId;
+            }
+        }
+        return ChannelDescriptor.EC_NOT_AVAILABLE;
+    }
+}
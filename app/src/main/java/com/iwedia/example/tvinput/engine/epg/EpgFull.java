@@ -10,14 +10,16 @@
  */
 package com.iwedia.example.tvinput.engine.epg;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
-import android.net.ParseException;
 
 import com.iwedia.dtv.epg.EpgEvent;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.dtv.types.TimeDate;
 import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.engine.EpgManager;
 import com.iwedia.example.tvinput.engine.utils.EpgRunnable;
+import com.iwedia.example.tvinput.utils.ExampleSwitches;
 import com.iwedia.example.tvinput.utils.Logger;
 
 import java.util.ArrayList;
@@ -33,12 +35,29 @@ public class EpgFull extends EpgRunnable {
 
     public interface IEpgAcquisitionListener {
 
-        public void epgAcquisitionStarted(Long frequency);
+        /** Value of changed programs when acquisition did not complete */
+        public static final int CHANGES_UNKNOWN = -1;
 
-        public void epgAcquisitionFinished(Long frequency);
+        public void epgAcquisitionStarted(long frequency);
+
+        /**
+         * @param frequency       Transponder frequency
+         * @param changedPrograms Number of inserted, updated and deleted programs, or
+         *                        {@link #CHANGES_UNKNOWN}
+         * @param totalPrograms   Number of programs received from MW
+         */
+        public void epgAcquisitionFinished(long frequency, int changedPrograms,
+                int totalPrograms);
     }
 
     private IEpgAcquisitionListener mEpgAcquisitionListener;
+    /** Indexes of channels to refresh, null for all channels */
+    private final int[] mChannelIndexes;
+    /** Scheduler given control between channels, null if refresh is not interrupted */
+    private EpgTaskScheduler mScheduler = null;
+    private EpgTaskScheduler.Priority mPriority = EpgTaskScheduler.Priority.BACKGROUND;
+    /** True if the current MW batch was stopped to let more urgent tasks run */
+    private boolean mPreempted = false;
 
     /**
      * Constructor
@@ -49,40 +68,170 @@ public class EpgFull extends EpgRunnable {
         super(context);
         mEpgAcquisitionListener = null;
         mServiceIndex = -1;
-        mFrequency = -1L;
+        mFrequency = -1;
+        mChannelIndexes = null;
     }
 
     public EpgFull(Context context, IEpgAcquisitionListener listener, int serviceIndex,
-            Long frequency) {
+            long frequency) {
+        this(context, listener, serviceIndex, frequency, null);
+    }
+
+    /**
+     * Constructor for refreshing a part of channels
+     *
+     * @param channelIndexes Indexes of channels to refresh, null for all channels
+     */
+    public EpgFull(Context context, IEpgAcquisitionListener listener, int serviceIndex,
+            long frequency, int[] channelIndexes) {
         super(context);
         mEpgAcquisitionListener = listener;
         mServiceIndex = serviceIndex;
         mFrequency = frequency;
+        mChannelIndexes = channelIndexes;
+    }
+
+    /**
+     * Lets more urgent EPG tasks run between channels. MW batch is stopped and read channels are
+     * written before they run.
+     *
+     * @param scheduler Scheduler running this refresh
+     * @param priority  Priority of this refresh
+     */
+    public void setScheduler(EpgTaskScheduler scheduler, EpgTaskScheduler.Priority priority) {
+        mScheduler = scheduler;
+        mPriority = priority;
     }
 
     @Override
     public void run() {
+        takeChannelSnapshot();
         int channelListSize = mDtvManager.getChannelManager().getDtvChannelListSize();
         TimeDate startTime = mDtvManager.getEpgManager().getWindowStartTime();
         TimeDate endTime = mDtvManager.getEpgManager().getWindowEndTime();
         mLog.d("[run][start time: " + startTime + "]");
         mLog.d("[run][end time: " + endTime + "]");
         mEpgAcquisitionListener.epgAcquisitionStarted(mFrequency);
-        for (int channelIndex = 1; channelIndex <= channelListSize; channelIndex++) {
-            ArrayList<EpgEvent> events = null;
-            try {
-                events = mDtvManager.getEpgManager().getEpgEvents(channelIndex);
-            } catch (ParseException e) {
-                e.printStackTrace();
-            } catch (IllegalArgumentException e) {
-                e.printStackTrace();
-            } catch (InternalException e) {
-                e.printStackTrace();
+        int changedPrograms = IEpgAcquisitionListener.CHANGES_UNKNOWN;
+        EpgPipeline pipeline = null;
+        boolean finished = false;
+        try {
+            pipeline = startPipeline();
+            read(pipeline, getChannelIndexes(channelListSize));
+            // Operations of a stale snapshot refer to channels of the old one
+            if (!isChannelSnapshotStale()) {
+                finished = true;
+                if (pipeline.finish()) {
+                    changedPrograms = mReconciler.getChangedPrograms();
+                }
+                if (ExampleSwitches.ENABLE_LAZY_LONG_DESCRIPTION) {
+                    mDtvManager.getLongDescriptionFiller().schedule();
+                }
             }
-            if (events != null) {
-                addPrograms(events, channelIndex);
+        } finally {
+            // Reached also when reading or reconciling throws, otherwise acquisition would
+            // stay in progress for good
+            if (pipeline != null && !finished) {
+                pipeline.abort();
+            }
+            mEpgAcquisitionListener.epgAcquisitionFinished(mFrequency, changedPrograms,
+                    mReconciler.getTotalPrograms());
+        }
+    }
+
+    /**
+     * Creates and starts pipeline which transforms and writes events read by this thread
+     */
+    private EpgPipeline startPipeline() {
+        EpgPipeline pipeline = new EpgPipeline(new EpgPipeline.ITransformer() {
+
+            @Override
+            public void transform(int channelIndex, ArrayList<EpgEvent> events,
+                    ArrayList<ContentProviderOperation> operations) {
+                buildProgramOperations(events, channelIndex, operations);
+            }
+        }, new EpgPipeline.IWriter() {
+
+            @Override
+            public boolean write(ArrayList<ContentProviderOperation> operations,
+                    int[] channelIndexes) {
+                return applyProgramOperations(operations, channelIndexes);
+            }
+        }, EpgPipeline.DEFAULT_WRITE_BATCH_SIZE);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Reads events of given channels from MW and offers them to pipeline, this thread is the MW
+     * read stage
+     */
+    private void read(final EpgPipeline pipeline, int[] channelIndexes) {
+        try {
+            int next = 0;
+            while (next < channelIndexes.length) {
+                int[] remaining = new int[channelIndexes.length - next];
+                System.arraycopy(channelIndexes, next, remaining, 0, remaining.length);
+                mPreempted = false;
+                next += mDtvManager.getEpgManager().getEpgEvents(remaining,
+                        new EpgManager.IEpgEventsReceiver() {
+
+                            @Override
+                            public boolean onServiceEvents(int channelIndex,
+                                    ArrayList<EpgEvent> events) {
+                                if (isChannelSnapshotStale()) {
+                                    mLog.d("[read][channel list changed, aborting]");
+                                    return false;
+                                }
+                                if (!pipeline.offer(channelIndex, events)) {
+                                    return false;
+                                }
+                                if (mScheduler != null && mScheduler.hasReadyTask(mPriority)) {
+                                    // Batch is stopped, so MW acquisition is not active while
+                                    // more urgent tasks run
+                                    mPreempted = true;
+                                    return false;
+                                }
+                                return true;
+                            }
+                        });
+                if (!mPreempted) {
+                    break;
+                }
+                // Urgent tasks may write programs, channels read so far are written first so
+                // they do not reconcile against programs still queued in the pipeline
+                if (!pipeline.flush()) {
+                    break;
+                }
+                mScheduler.yield(mPriority);
+            }
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        } catch (InternalException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Requested channel indexes which are in the channel list, or all channels
+     */
+    private int[] getChannelIndexes(int channelListSize) {
+        if (mChannelIndexes == null) {
+            int[] channelIndexes = new int[Math.max(channelListSize, 0)];
+            for (int i = 0; i < channelIndexes.length; i++) {
+                channelIndexes[i] = i + 1;
+            }
+            return channelIndexes;
+        }
+        int count = 0;
+        int[] channelIndexes = new int[mChannelIndexes.length];
+        for (int channelIndex : mChannelIndexes) {
+            if (channelIndex >= 1 && channelIndex <= channelListSize) {
+                channelIndexes[count++] = channelIndex;
             }
         }
-        mEpgAcquisitionListener.epgAcquisitionFinished(mFrequency);
+        int[] result = new int[count];
+        System.arraycopy(channelIndexes, 0, result, 0, count);
+        return result;
     }
 }
@@ -10,6 +10,7 @@
  */
 package com.iwedia.example.tvinput.engine.epg;
 
+import android.content.ContentProviderOperation;
 import android.content.Context;
 
 import com.iwedia.dtv.epg.EpgEvent;
@@ -18,45 +19,69 @@ import com.iwedia.dtv.epg.IEpgControl;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.example.tvinput.engine.utils.EpgRunnable;
 
+import java.util.ArrayList;
+
 /**
  * Runnable class for inserting Now/Next EPG data into program Database
  */
 public class EpgNowNext extends EpgRunnable {
 
-    /** Now/Next events origin channel index */
-    private final int mChannelIndex;
+    /** Indexes of services whose Now/Next events are written */
+    private final int[] mChannelIndexes;
+    /** Cache updated with read events */
+    private final NowNextCache mCache;
 
     /**
      * Contructor
      *
-     * @param context   Application context
-     * @param channelId Channel id for Now/Next event
+     * @param context        Application context
+     * @param cache          Cache updated with read events
+     * @param channelIndexes Indexes of services whose Now/Next events are written
      */
-    public EpgNowNext(Context context, int channelIndex) {
+    public EpgNowNext(Context context, NowNextCache cache, int[] channelIndexes) {
         super(context);
-        mChannelIndex = channelIndex;
+        mCache = cache;
+        mChannelIndexes = channelIndexes;
     }
 
     @Override
     public void run() {
-        EpgEvent now = null;
-        EpgEvent next = null;
+        takeChannelSnapshot();
+        mCache.setSnapshotVersion(mChannelSnapshot.getVersion());
         IEpgControl epgControl = mDtvManager.getEpgControl();
-        try {
-            // Get Present Event
-            now = epgControl.getPresentFollowingEvent(
-                    mDtvManager.getEpgManager().getEpgFilterID(),
-                    (int) mChannelIndex, EpgEventType.PRESENT_EVENT);
-            // Get Next Event
-            next = epgControl.getPresentFollowingEvent(
-                    mDtvManager.getEpgManager().getEpgFilterID(),
-                    (int) mChannelIndex, EpgEventType.FOLLOWING_EVENT);
-        } catch (IllegalArgumentException iae) {
-            iae.printStackTrace();
-        } catch (InternalException ie) {
-            ie.printStackTrace();
+        int filterId = mDtvManager.getEpgManager().getEpgFilterID();
+        // Events of all services are written in one batch
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int channelIndex : mChannelIndexes) {
+            EpgEvent now = null;
+            EpgEvent next = null;
+            try {
+                // Get Present Event
+                now = epgControl.getPresentFollowingEvent(filterId, channelIndex,
+                        EpgEventType.PRESENT_EVENT);
+                // Get Next Event
+                next = epgControl.getPresentFollowingEvent(filterId, channelIndex,
+                        EpgEventType.FOLLOWING_EVENT);
+            } catch (IllegalArgumentException iae) {
+                iae.printStackTrace();
+            } catch (InternalException ie) {
+                ie.printStackTrace();
+            }
+            mCache.put(channelIndex, now, next);
+            // Both events are reconciled together, so a changed schedule is written at once
+            ArrayList<EpgEvent> events = new ArrayList<EpgEvent>(2);
+            if (now != null) {
+                events.add(now);
+            }
+            if (next != null) {
+                events.add(next);
+            }
+            buildProgramOperations(events, channelIndex, operations);
+        }
+        if (isChannelSnapshotStale()) {
+            // Operations refer to channels of the old snapshot
+            return;
         }
-        addProgram(now, mChannelIndex);
-        addProgram(next, mChannelIndex);
+        applyProgramOperations(operations, mChannelIndexes);
     }
 }
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.content.ContentProviderOperation;
+import android.os.SystemClock;
+
+import com.iwedia.dtv.epg.EpgEvent;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Three stage pipeline for EPG ingestion. The caller reads events from MW and offers them
+ * channel by channel, a transform thread turns them into database operations and a writer
+ * thread applies operations of several channels in one batch. Stages are connected with
+ * bounded queues, so a slow stage blocks the one before it instead of buffering without limit.
+ * MW reading and database writing overlap, so a full refresh takes about as long as the slower
+ * of the two.
+ */
+public class EpgPipeline {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + EpgPipeline.class.getSimpleName(), Logger.ERROR);
+    /** Default number of operations applied in one batch */
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 500;
+    /** Number of channels waiting between two stages */
+    private static final int QUEUE_CAPACITY = 4;
+    /** Marks end of input in stage queues */
+    private static final Item END = new Item(-1, null, null);
+    /** Makes writer apply everything received so far, see {@link #flush()} */
+    private static final Item FLUSH = new Item(-1, null, null);
+
+    /**
+     * Turns events of one channel into database operations, called on transform thread
+     */
+    public interface ITransformer {
+
+        /**
+         * @param channelIndex Channel index
+         * @param events       Events of the channel
+         * @param operations   List to which operations are added
+         */
+        void transform(int channelIndex, ArrayList<EpgEvent> events,
+                ArrayList<ContentProviderOperation> operations);
+    }
+
+    /**
+     * Applies a batch of database operations, called on writer thread
+     */
+    public interface IWriter {
+
+        /**
+         * @param operations     Operations of one or more channels
+         * @param channelIndexes Indexes of channels operations belong to
+         * @return True if operations are applied
+         */
+        boolean write(ArrayList<ContentProviderOperation> operations, int[] channelIndexes);
+    }
+
+    /**
+     * Channel travelling through the pipeline
+     */
+    private static final class Item {
+
+        private final int mChannelIndex;
+        private final ArrayList<EpgEvent> mEvents;
+        private final ArrayList<ContentProviderOperation> mOperations;
+
+        Item(int channelIndex, ArrayList<EpgEvent> events,
+                ArrayList<ContentProviderOperation> operations) {
+            mChannelIndex = channelIndex;
+            mEvents = events;
+            mOperations = operations;
+        }
+    }
+
+    /**
+     * Throughput counters of one stage
+     */
+    private static final class StageCounters {
+
+        private final String mName;
+        private int mChannels = 0;
+        private int mItems = 0;
+        /** Time spent working */
+        private long mBusyTime = 0;
+        /** Time spent waiting for the next stage to accept output */
+        private long mBlockedTime = 0;
+
+        StageCounters(String name) {
+            mName = name;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "[" + mName + ": " + mChannels + " channels, " + mItems + " items, busy "
+                    + mBusyTime + " ms, blocked " + mBlockedTime + " ms]";
+        }
+    }
+
+    private final ITransformer mTransformer;
+    private final IWriter mWriter;
+    private final int mWriteBatchSize;
+    private final BlockingQueue<Item> mEventQueue = new ArrayBlockingQueue<Item>(QUEUE_CAPACITY);
+    private final BlockingQueue<Item> mOperationQueue = new ArrayBlockingQueue<Item>(
+            QUEUE_CAPACITY);
+    private final StageCounters mReadCounters = new StageCounters("read");
+    private final StageCounters mTransformCounters = new StageCounters("transform");
+    private final StageCounters mWriteCounters = new StageCounters("write");
+    private Thread mTransformThread;
+    private Thread mWriterThread;
+    private volatile boolean mAborted = false;
+    /** Number of flushes requested by reader */
+    private int mFlushesRequested = 0;
+    /** Number of flushes completed by writer, guarded by {@link #mFlushLock} */
+    private int mFlushesDone = 0;
+    private final Object mFlushLock = new Object();
+    private long mStartTime;
+    /** Time when reader started waiting for MW, used for measuring read stage */
+    private long mReadStart;
+
+    /**
+     * Constructor
+     *
+     * @param transformer    Transform stage
+     * @param writer         Writer stage
+     * @param writeBatchSize Minimum number of operations applied in one batch, except the last
+     */
+    public EpgPipeline(ITransformer transformer, IWriter writer, int writeBatchSize) {
+        mTransformer = transformer;
+        mWriter = writer;
+        mWriteBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Starts transform and writer threads
+     */
+    public void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mReadStart = mStartTime;
+        mTransformThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runTransformStage();
+                } catch (RuntimeException e) {
+                    onStageFailed("transform", e);
+                }
+            }
+        }, "EpgPipeline-transform");
+        mWriterThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runWriterStage();
+                } catch (RuntimeException e) {
+                    onStageFailed("writer", e);
+                }
+            }
+        }, "EpgPipeline-writer");
+        mTransformThread.start();
+        mWriterThread.start();
+    }
+
+    /**
+     * Hands over events of one channel read from MW. Blocks while transform stage is behind.
+     *
+     * @param channelIndex Channel index
+     * @param events       Events of the channel
+     * @return False if pipeline is aborted and reading should stop
+     */
+    public boolean offer(int channelIndex, ArrayList<EpgEvent> events) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mReadCounters) {
+            mReadCounters.mBusyTime += now - mReadStart;
+            mReadCounters.mChannels++;
+            mReadCounters.mItems += events.size();
+        }
+        boolean accepted = put(mEventQueue, new Item(channelIndex, events, null),
+                mReadCounters);
+        mReadStart = SystemClock.elapsedRealtime();
+        return accepted;
+    }
+
+    /**
+     * Waits until events of all offered channels are written. Called by reader when it lets
+     * other tasks use the database, so they see what was read before.
+     *
+     * @return False if pipeline is aborted and reading should stop
+     */
+    public boolean flush() {
+        long start = SystemClock.elapsedRealtime();
+        synchronized (mReadCounters) {
+            mReadCounters.mBusyTime += start - mReadStart;
+        }
+        if (!put(mEventQueue, FLUSH, mReadCounters)) {
+            return false;
+        }
+        mFlushesRequested++;
+        try {
+            synchronized (mFlushLock) {
+                while (!mAborted && mFlushesDone < mFlushesRequested) {
+                    mFlushLock.wait(100);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mReadStart = SystemClock.elapsedRealtime();
+        synchronized (mReadCounters) {
+            mReadCounters.mBlockedTime += mReadStart - start;
+        }
+        return !mAborted;
+    }
+
+    /**
+     * Signals end of input and waits until everything is written
+     *
+     * @return False if pipeline was aborted and not everything is written
+     */
+    public boolean finish() {
+        put(mEventQueue, END, mReadCounters);
+        join(mTransformThread);
+        join(mWriterThread);
+        mLog.i("[finish]" + mReadCounters + mTransformCounters + mWriteCounters + "[total: "
+                + (SystemClock.elapsedRealtime() - mStartTime) + " ms]");
+        return !mAborted;
+    }
+
+    /**
+     * Drops everything not written yet and stops the stages
+     */
+    public void abort() {
+        mAborted = true;
+        mEventQueue.clear();
+        mOperationQueue.clear();
+        mTransformThread.interrupt();
+        mWriterThread.interrupt();
+        join(mTransformThread);
+        join(mWriterThread);
+        mLog.i("[abort]" + mReadCounters + mTransformCounters + mWriteCounters);
+    }
+
+    /**
+     * Aborts the pipeline when a stage thread dies, otherwise the other stages and the reader
+     * would wait for it forever
+     */
+    private void onStageFailed(String stage, RuntimeException e) {
+        mLog.e("[onStageFailed][" + stage + " stage failed, aborting]");
+        e.printStackTrace();
+        mAborted = true;
+        mEventQueue.clear();
+        mOperationQueue.clear();
+        mTransformThread.interrupt();
+        mWriterThread.interrupt();
+        synchronized (mFlushLock) {
+            mFlushLock.notifyAll();
+        }
+    }
+
+    private void runTransformStage() {
+        while (!mAborted) {
+            Item item = take(mEventQueue);
+            if (item == null) {
+                return;
+            }
+            if (item == END) {
+                put(mOperationQueue, END, mTransformCounters);
+                return;
+            }
+            if (item == FLUSH) {
+                if (!put(mOperationQueue, FLUSH, mTransformCounters)) {
+                    return;
+                }
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime();
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            mTransformer.transform(item.mChannelIndex, item.mEvents, operations);
+            synchronized (mTransformCounters) {
+                mTransformCounters.mBusyTime += SystemClock.elapsedRealtime() - start;
+                mTransformCounters.mChannels++;
+                mTransformCounters.mItems += operations.size();
+            }
+            if (!operations.isEmpty()
+                    && !put(mOperationQueue, new Item(item.mChannelIndex, null, operations),
+                    mTransformCounters)) {
+                return;
+            }
+        }
+    }
+
+    private void runWriterStage() {
+        ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
+        int[] channelIndexes = new int[QUEUE_CAPACITY];
+        int channels = 0;
+        while (!mAborted) {
+            Item item = take(mOperationQueue);
+            if (item == null) {
+                return;
+            }
+            boolean flushBatch = item == END || item == FLUSH;
+            if (!flushBatch) {
+                batch.addAll(item.mOperations);
+                if (channels == channelIndexes.length) {
+                    int[] grown = new int[channels * 2];
+                    System.arraycopy(channelIndexes, 0, grown, 0, channels);
+                    channelIndexes = grown;
+                }
+                channelIndexes[channels++] = item.mChannelIndex;
+            }
+            if (batch.size() >= mWriteBatchSize || (flushBatch && !batch.isEmpty())) {
+                long start = SystemClock.elapsedRealtime();
+                int[] written = new int[channels];
+                System.arraycopy(channelIndexes, 0, written, 0, channels);
+                if (!mWriter.write(batch, written)) {
+                    mLog.e("[runWriterStage][batch of " + channels + " channels failed]");
+                }
+                synchronized (mWriteCounters) {
+                    mWriteCounters.mBusyTime += SystemClock.elapsedRealtime() - start;
+                    mWriteCounters.mChannels += channels;
+                    mWriteCounters.mItems += batch.size();
+                }
+                batch = new ArrayList<ContentProviderOperation>();
+                channels = 0;
+            }
+            if (item == FLUSH) {
+                synchronized (mFlushLock) {
+                    mFlushesDone++;
+                    mFlushLock.notifyAll();
+                }
+            }
+            if (item == END) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts item into queue, waiting while queue is full
+     *
+     * @return False if pipeline was aborted while waiting
+     */
+    private boolean put(BlockingQueue<Item> queue, Item item, StageCounters counters) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            while (!mAborted) {
+                if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (counters) {
+                counters.mBlockedTime += SystemClock.elapsedRealtime() - start;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Takes item from queue, waiting while queue is empty
+     *
+     * @return Item or null if pipeline was aborted
+     */
+    private Item take(BlockingQueue<Item> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    private void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
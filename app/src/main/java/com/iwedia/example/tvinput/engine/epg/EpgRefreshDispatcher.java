@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.engine.DtvManager;
+import com.iwedia.example.tvinput.engine.EpgAcquisitionManager;
+import com.iwedia.example.tvinput.utils.Logger;
+
+/**
+ * Coalesces EPG callbacks into refreshes. Services reported by MW are marked dirty and one
+ * refresh limited to the dirty services runs after a short quiet period, so a burst of
+ * callbacks costs one ingestion. There is at most one refresh queued in the EPG scheduler, a new
+ * callback replaces it, and services marked while a refresh runs are picked up by the next one.
+ * Refresh of some services runs with current transponder priority, refresh of all services in
+ * background.
+ * <p>
+ * Services whose acquisition finished are refreshed when the acquisition scheduler allows it,
+ * services whose events changed are refreshed right away.
+ */
+public class EpgRefreshDispatcher {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + EpgRefreshDispatcher.class.getSimpleName(), Logger.ERROR);
+    /** Quiet period after the last callback before refresh runs */
+    private static final long COALESCE_DELAY = 1000;
+    /** Longest time a callback waits for refresh while callbacks keep coming */
+    private static final long MAX_DELAY = 5000;
+    /** Key of refresh task in EPG scheduler */
+    private static final String TASK_KEY = "schedule";
+    private final Context mContext;
+    private final DtvManager mDtvManager;
+    /** Scheduler of EPG thread, refreshes run on it */
+    private final EpgTaskScheduler mScheduler;
+    /** Dirty service indexes */
+    private final SparseBooleanArray mDirty = new SparseBooleanArray();
+    /** True if all services should be refreshed */
+    private boolean mAllDirty = false;
+    /** True if a dirty service has changed events, refresh does not wait for the scheduler */
+    private boolean mChanged = false;
+    /** Time of the first callback not yet refreshed */
+    private long mFirstMarkTime = 0;
+    /** Time before which acquisition scheduler will not allow refresh */
+    private long mBlockedUntil = 0;
+    /** Number of callbacks since creation */
+    private int mMarks = 0;
+    /** Number of refreshes since creation */
+    private int mRefreshes = 0;
+    private final Runnable mDispatchRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context    Application context
+     * @param dtvManager DTV manager
+     * @param scheduler  Scheduler of EPG thread
+     */
+    public EpgRefreshDispatcher(Context context, DtvManager dtvManager,
+            EpgTaskScheduler scheduler) {
+        mContext = context;
+        mDtvManager = dtvManager;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Marks service whose schedule acquisition has finished
+     *
+     * @param serviceIndex Service index
+     */
+    public synchronized void onAcquisitionFinished(int serviceIndex) {
+        mDirty.put(serviceIndex, true);
+        schedule();
+    }
+
+    /**
+     * Marks service whose events have changed
+     *
+     * @param serviceIndex Service index
+     */
+    public synchronized void onEventsChanged(int serviceIndex) {
+        mDirty.put(serviceIndex, true);
+        mChanged = true;
+        schedule();
+    }
+
+    /**
+     * Requests refresh of all services, waits for the acquisition scheduler
+     */
+    public synchronized void onFullRefresh() {
+        mAllDirty = true;
+        schedule();
+    }
+
+    /**
+     * Drops pending refresh
+     */
+    public synchronized void cancel() {
+        mScheduler.cancel(TASK_KEY);
+        mDirty.clear();
+        mAllDirty = false;
+        mChanged = false;
+        mFirstMarkTime = 0;
+    }
+
+    /**
+     * Replaces queued refresh with one at the end of the quiet period
+     */
+    private void schedule() {
+        mMarks++;
+        long now = SystemClock.uptimeMillis();
+        if (mFirstMarkTime == 0) {
+            mFirstMarkTime = now;
+        }
+        long time = Math.min(now + COALESCE_DELAY, mFirstMarkTime + MAX_DELAY);
+        if (!mChanged) {
+            time = Math.max(time, mBlockedUntil);
+        }
+        mScheduler.submit(TASK_KEY, getPriority(), mDispatchRunnable, time);
+    }
+
+    /**
+     * @return Priority of refreshing currently dirty services
+     */
+    private EpgTaskScheduler.Priority getPriority() {
+        return mAllDirty ? EpgTaskScheduler.Priority.BACKGROUND
+                : EpgTaskScheduler.Priority.CURRENT_TRANSPONDER;
+    }
+
+    /**
+     * Runs one refresh for all dirty services, called on EPG thread
+     */
+    private void dispatch() {
+        boolean changed;
+        synchronized (this) {
+            if (mDirty.size() == 0 && !mAllDirty) {
+                return;
+            }
+            changed = mChanged;
+        }
+        EpgAcquisitionManager acquisitionManager = mDtvManager.getEpgAcquisitionManager();
+        long frequency = mDtvManager.getCurrentTransponder();
+        if (!changed) {
+            long delay = acquisitionManager.requestAcquisition(frequency);
+            if (delay > 0) {
+                synchronized (this) {
+                    mBlockedUntil = SystemClock.uptimeMillis() + delay;
+                    mScheduler.submit(TASK_KEY, getPriority(), mDispatchRunnable,
+                            mBlockedUntil);
+                }
+                mLog.d("[dispatch][acquisition not allowed for " + delay + " ms]");
+                return;
+            }
+        }
+        int[] channelIndexes = null;
+        EpgTaskScheduler.Priority priority;
+        synchronized (this) {
+            priority = getPriority();
+            if (!mAllDirty) {
+                channelIndexes = new int[mDirty.size()];
+                for (int i = 0; i < channelIndexes.length; i++) {
+                    channelIndexes[i] = mDirty.keyAt(i);
+                }
+            }
+            mDirty.clear();
+            mAllDirty = false;
+            mChanged = false;
+            mFirstMarkTime = 0;
+            mBlockedUntil = 0;
+            mRefreshes++;
+            mLog.d("[dispatch][services: " + (channelIndexes == null ? "all"
+                    : String.valueOf(channelIndexes.length)) + "][callbacks: " + mMarks
+                    + "][refreshes: " + mRefreshes + "]");
+        }
+        // Service index reported by MW is the channel index used by EPG runnables
+        EpgFull epgFull = new EpgFull(mContext, acquisitionManager,
+                mDtvManager.getCurrentServiceIndex(), frequency, channelIndexes);
+        epgFull.setScheduler(mScheduler, priority);
+        epgFull.run();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Programs;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.iwedia.dtv.types.TimeDate;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.engine.DtvManager;
+import com.iwedia.example.tvinput.engine.EpgManager;
+import com.iwedia.example.tvinput.utils.Logger;
+import com.iwedia.example.tvinput.utils.TimeUtils;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps Programs table bounded. Periodically deletes programs which ended more than the
+ * retention horizon ago and programs which start after the end of the active acquisition
+ * window. Deletes are done in small batches on a background priority thread and only while no
+ * EPG acquisition is running, so the provider is never held for long.
+ */
+public class EpgRetention {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + EpgRetention.class.getSimpleName(), Logger.ERROR);
+    /** Default time for which ended programs are kept */
+    public static final long DEFAULT_HORIZON = 3 * 60 * TimeUtils.MILLIS_PER_MINUTE;
+    /** Time between two pruning runs */
+    private static final long PRUNE_INTERVAL = 60 * TimeUtils.MILLIS_PER_MINUTE;
+    /** Delay of the first run after start */
+    private static final long INITIAL_DELAY = 2 * TimeUtils.MILLIS_PER_MINUTE;
+    /** Delay before checking again when EPG acquisition is running */
+    private static final long BUSY_RETRY_DELAY = 30 * 1000;
+    /** Number of programs deleted in one batch */
+    private static final int CHUNK_SIZE = 200;
+    /** Pause between two batches, lets other provider clients in */
+    private static final long CHUNK_DELAY = 50;
+    /** Projection for reading IDs of programs to delete */
+    private static final String[] PROJECTION = {
+            Programs._ID
+    };
+    private final Context mContext;
+    private final DtvManager mDtvManager;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    /** Time for which ended programs are kept */
+    private volatile long mHorizon = DEFAULT_HORIZON;
+    /** IDs of programs left to delete in the current run */
+    private long[] mPending = null;
+    /** Position of the next pending ID to delete */
+    private int mPendingPosition = 0;
+    /** Number of completed runs since creation */
+    private int mRuns = 0;
+    /** Number of deleted programs since creation */
+    private long mPrunedRows = 0;
+    /** Time spent querying and deleting since creation */
+    private long mTimeSpent = 0;
+    private final Runnable mPruneRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            prune();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context    Application context
+     * @param dtvManager DTV manager
+     */
+    public EpgRetention(Context context, DtvManager dtvManager) {
+        mContext = context;
+        mDtvManager = dtvManager;
+        mThread = new HandlerThread(EpgRetention.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Starts periodic pruning
+     */
+    public void start() {
+        mHandler.removeCallbacks(mPruneRunnable);
+        mHandler.postDelayed(mPruneRunnable, INITIAL_DELAY);
+    }
+
+    /**
+     * Stops pruning and its thread
+     */
+    public void release() {
+        mHandler.removeCallbacks(mPruneRunnable);
+        mThread.quit();
+    }
+
+    /**
+     * Sets time for which ended programs are kept, applied from the next run
+     *
+     * @param horizon Time in milliseconds
+     */
+    public void setHorizon(long horizon) {
+        mHorizon = horizon;
+    }
+
+    /**
+     * @return Number of deleted programs since creation
+     */
+    public synchronized long getPrunedRows() {
+        return mPrunedRows;
+    }
+
+    /**
+     * @return Time in milliseconds spent pruning since creation
+     */
+    public synchronized long getTimeSpent() {
+        return mTimeSpent;
+    }
+
+    /**
+     * Deletes one chunk of programs and schedules the next step. A run starts with reading IDs
+     * of all programs to delete, after that every step deletes one chunk.
+     */
+    private void prune() {
+        if (mDtvManager.getEpgAcquisitionManager().isAcquisitionInProgress()) {
+            mLog.d("[prune][acquisition in progress, postponing]");
+            mHandler.postDelayed(mPruneRunnable, BUSY_RETRY_DELAY);
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        if (mPending == null) {
+            mPending = queryExpired();
+            mPendingPosition = 0;
+        }
+        int deleted = 0;
+        if (mPending != null && mPendingPosition < mPending.length) {
+            int end = Math.min(mPendingPosition + CHUNK_SIZE, mPending.length);
+            deleted = delete(mPending, mPendingPosition, end);
+            mPendingPosition = end;
+        }
+        boolean done = mPending == null || mPendingPosition >= mPending.length;
+        synchronized (this) {
+            mPrunedRows += deleted;
+            mTimeSpent += SystemClock.elapsedRealtime() - start;
+            if (done) {
+                mRuns++;
+                mLog.i("[prune][run " + mRuns + "][pruned rows: " + mPrunedRows
+                        + "][time spent: " + mTimeSpent + " ms]");
+            }
+        }
+        if (done) {
+            mPending = null;
+            mHandler.postDelayed(mPruneRunnable, PRUNE_INTERVAL);
+        } else {
+            mHandler.postDelayed(mPruneRunnable, CHUNK_DELAY);
+        }
+    }
+
+    /**
+     * Reads IDs of programs outside retention range
+     *
+     * @return Program IDs, or null if query failed
+     */
+    private long[] queryExpired() {
+        long now = System.currentTimeMillis();
+        String selection = Programs.COLUMN_END_TIME_UTC_MILLIS + " < ?";
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(String.valueOf(now - mHorizon));
+        EpgManager epgManager = mDtvManager.getEpgManager();
+        TimeDate windowEnd = epgManager == null ? null : epgManager.getWindowEndTime();
+        if (windowEnd != null) {
+            long windowEndMillis = TimeUtils.toEpochMillis(windowEnd);
+            // Window left from an earlier day would cover programs that are still to come
+            if (windowEndMillis > now) {
+                selection += " OR " + Programs.COLUMN_START_TIME_UTC_MILLIS + " > ?";
+                args.add(String.valueOf(windowEndMillis));
+            }
+        }
+        Cursor cursor = mContext.getContentResolver().query(Programs.CONTENT_URI, PROJECTION,
+                selection, args.toArray(new String[args.size()]), null);
+        if (cursor == null) {
+            mLog.e("[queryExpired][query failed]");
+            return null;
+        }
+        long[] ids;
+        try {
+            ids = new long[cursor.getCount()];
+            int count = 0;
+            while (cursor.moveToNext() && count < ids.length) {
+                ids[count++] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        mLog.d("[queryExpired][" + ids.length + " programs to prune]");
+        return ids;
+    }
+
+    /**
+     * Deletes programs in one batch
+     *
+     * @return Number of deleted programs
+     */
+    private int delete(long[] ids, int from, int to) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+                to - from);
+        for (int i = from; i < to; i++) {
+            operations.add(ContentProviderOperation.newDelete(
+                    TvContract.buildProgramUri(ids[i])).build());
+        }
+        try {
+            mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return 0;
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        return operations.size();
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+
+/**
+ * Runs EPG tasks on the EPG thread by priority instead of in posting order. Every task has a
+ * key naming the work it does; submitting a task replaces a queued task with the same key, so
+ * stale work is not stacked. Long running tasks call {@link #yield(Priority)} between channels,
+ * which runs ready tasks of higher priority before the long task continues, so now/next of the
+ * live channel does not wait for a full EPG refresh. Only tasks submitted as nestable run from
+ * a yield point, other tasks wait until the running task returns.
+ */
+public class EpgTaskScheduler {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + EpgTaskScheduler.class.getSimpleName(), Logger.ERROR);
+
+    /**
+     * Priority classes, from the most urgent
+     */
+    public enum Priority {
+        /** Now/next events, shown in banners and used by parental control */
+        NOW_NEXT,
+        /** Schedule of services on the current transponder */
+        CURRENT_TRANSPONDER,
+        /** Refresh of the whole EPG */
+        BACKGROUND
+    }
+
+    /**
+     * Queued task
+     */
+    private static final class Task {
+
+        private final String mKey;
+        private Priority mPriority;
+        private Runnable mRunnable;
+        /** Uptime after which the task may run */
+        private long mReadyTime;
+        /** True if the task may run from a yield point of another task */
+        private boolean mNestable;
+
+        Task(String key, Priority priority, Runnable runnable, long readyTime,
+                boolean nestable) {
+            mKey = key;
+            mPriority = priority;
+            mRunnable = runnable;
+            mReadyTime = readyTime;
+            mNestable = nestable;
+        }
+    }
+
+    /** Handler of EPG thread */
+    private final Handler mHandler;
+    private final ArrayList<Task> mQueue = new ArrayList<Task>();
+    /** Keys of running tasks, a task never runs nested in a task with the same key */
+    private final ArrayList<String> mRunningKeys = new ArrayList<String>();
+    /** Number of run tasks per priority */
+    private final int[] mRunCounts = new int[Priority.values().length];
+    /** Total and longest time ready tasks waited to run, per priority */
+    private final long[] mTotalWaits = new long[Priority.values().length];
+    private final long[] mMaxWaits = new long[Priority.values().length];
+    /** Number of queued tasks replaced by newer ones */
+    private int mReplaced = 0;
+    /** Number of tasks run from a yield point of a lower priority task */
+    private int mPreemptions = 0;
+    private final Runnable mRunNextRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param handler Handler of EPG thread
+     */
+    public EpgTaskScheduler(Handler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Queues a task which never runs from a yield point of another task, see
+     * {@link #submit(String, Priority, Runnable, long, boolean)}
+     */
+    public void submit(String key, Priority priority, Runnable runnable, long readyTime) {
+        submit(key, priority, runnable, readyTime, false);
+    }
+
+    /**
+     * Queues a task, replacing a queued task with the same key. If the queued task has higher
+     * priority it is kept with the new ready time, since it does the same work.
+     *
+     * @param key       Key naming the work task does
+     * @param priority  Priority class
+     * @param runnable  Task
+     * @param readyTime Uptime after which the task may run
+     * @param nestable  True if the task may run from {@link #yield(Priority)} of another task.
+     *                  Only tasks which can start while another task is in the middle of its
+     *                  work may be nestable.
+     */
+    public void submit(String key, Priority priority, Runnable runnable, long readyTime,
+            boolean nestable) {
+        synchronized (this) {
+            Task task = find(key);
+            if (task == null) {
+                mQueue.add(new Task(key, priority, runnable, readyTime, nestable));
+            } else {
+                mReplaced++;
+                task.mReadyTime = readyTime;
+                if (priority.ordinal() <= task.mPriority.ordinal()) {
+                    task.mPriority = priority;
+                    task.mRunnable = runnable;
+                    task.mNestable = nestable;
+                }
+            }
+        }
+        wake();
+    }
+
+    /**
+     * Removes a queued task
+     *
+     * @param key Key of the task
+     */
+    public void cancel(String key) {
+        synchronized (this) {
+            Task task = find(key);
+            if (task != null) {
+                mQueue.remove(task);
+            }
+        }
+        wake();
+    }
+
+    /**
+     * Runs ready nestable tasks of higher priority than the calling task. Called by long tasks on
+     * EPG thread at points where they can be interrupted. Nestable tasks may use MW EPG client and
+     * write programs, so the caller must not have MW acquisition running or program writes
+     * pending.
+     *
+     * @param priority Priority of the calling task
+     */
+    public void yield(Priority priority) {
+        Task task;
+        while ((task = takeReady(priority.ordinal(), true)) != null) {
+            synchronized (this) {
+                mPreemptions++;
+            }
+            run(task);
+        }
+    }
+
+    /**
+     * Checks if {@link #yield(Priority)} would run a task, so the caller can prepare for it
+     *
+     * @param priority Priority of the calling task
+     * @return True if a nestable task of higher priority is ready
+     */
+    public synchronized boolean hasReadyTask(Priority priority) {
+        long now = SystemClock.uptimeMillis();
+        for (Task task : mQueue) {
+            if (isRunnable(task, priority.ordinal(), true, now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param priority Priority class
+     * @return Number of queued tasks of given priority
+     */
+    public synchronized int getQueueDepth(Priority priority) {
+        int depth = 0;
+        for (Task task : mQueue) {
+            if (task.mPriority == priority) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @param priority Priority class
+     * @return Average time in milliseconds ready tasks of given priority waited to run
+     */
+    public synchronized long getAverageWait(Priority priority) {
+        int runs = mRunCounts[priority.ordinal()];
+        return runs == 0 ? 0 : mTotalWaits[priority.ordinal()] / runs;
+    }
+
+    /**
+     * @param priority Priority class
+     * @return Longest time in milliseconds a ready task of given priority waited to run
+     */
+    public synchronized long getMaxWait(Priority priority) {
+        return mMaxWaits[priority.ordinal()];
+    }
+
+    /**
+     * @return Queue depths and wait times, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Priority priority : Priority.values()) {
+            int i = priority.ordinal();
+            builder.append("[").append(priority).append(": queued ")
+                    .append(getQueueDepth(priority)).append(", run ").append(mRunCounts[i])
+                    .append(", avg wait ").append(getAverageWait(priority))
+                    .append(" ms, max wait ").append(mMaxWaits[i]).append(" ms]");
+        }
+        return builder.append("[replaced: ").append(mReplaced).append("][preemptions: ")
+                .append(mPreemptions).append("]").toString();
+    }
+
+    private Task find(String key) {
+        for (Task task : mQueue) {
+            if (task.mKey.equals(key)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the most urgent ready task with priority above given limit
+     *
+     * @param limit  Ordinal of the first priority not taken
+     * @param nested True if the task would run from a yield point
+     * @return Task, or null if there is none
+     */
+    private synchronized Task takeReady(int limit, boolean nested) {
+        long now = SystemClock.uptimeMillis();
+        Task best = null;
+        for (Task task : mQueue) {
+            if (isRunnable(task, limit, nested, now)
+                    && (best == null || task.mPriority.ordinal() < best.mPriority.ordinal())) {
+                best = task;
+            }
+        }
+        if (best != null) {
+            mQueue.remove(best);
+        }
+        return best;
+    }
+
+    /**
+     * @return True if task is ready, has priority above given limit, its key is not running and
+     * it is nestable if it would run from a yield point
+     */
+    private boolean isRunnable(Task task, int limit, boolean nested, long now) {
+        return task.mReadyTime <= now && task.mPriority.ordinal() < limit
+                && (!nested || task.mNestable) && !mRunningKeys.contains(task.mKey);
+    }
+
+    private void run(Task task) {
+        long wait = SystemClock.uptimeMillis() - task.mReadyTime;
+        synchronized (this) {
+            int i = task.mPriority.ordinal();
+            mRunCounts[i]++;
+            mTotalWaits[i] += wait;
+            mMaxWaits[i] = Math.max(mMaxWaits[i], wait);
+            mRunningKeys.add(task.mKey);
+        }
+        mLog.d("[run][" + task.mKey + "][" + task.mPriority + "][waited " + wait + " ms]");
+        try {
+            task.mRunnable.run();
+        } finally {
+            synchronized (this) {
+                mRunningKeys.remove(task.mKey);
+            }
+        }
+    }
+
+    private void runNext() {
+        Task task = takeReady(Priority.values().length, false);
+        if (task != null) {
+            run(task);
+            mLog.d("[runNext]" + this);
+        }
+        wake();
+    }
+
+    /**
+     * Schedules the next run for the earliest ready time of queued tasks
+     */
+    private void wake() {
+        long earliest = Long.MAX_VALUE;
+        synchronized (this) {
+            for (Task task : mQueue) {
+                earliest = Math.min(earliest, task.mReadyTime);
+            }
+        }
+        mHandler.removeCallbacks(mRunNextRunnable);
+        if (earliest != Long.MAX_VALUE) {
+            mHandler.postAtTime(mRunNextRunnable, earliest);
+        }
+    }
+}
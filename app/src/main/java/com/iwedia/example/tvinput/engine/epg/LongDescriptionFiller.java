@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Programs;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.data.ChannelDescriptor;
+import com.iwedia.example.tvinput.data.ChannelSnapshot;
+import com.iwedia.example.tvinput.data.EpgProgram;
+import com.iwedia.example.tvinput.engine.ChannelManager;
+import com.iwedia.example.tvinput.engine.DtvManager;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+
+/**
+ * Fills long descriptions of programs stored without them, see
+ * {@link com.iwedia.example.tvinput.utils.ExampleSwitches#ENABLE_LAZY_LONG_DESCRIPTION}.
+ * Runs on a background priority thread and visits channels in order of distance from the live
+ * channel, so descriptions the user is most likely to open are filled first. Descriptions read
+ * from MW are kept in a bounded cache, so programs rewritten by a later EPG refresh do not cost
+ * another MW call.
+ */
+public class LongDescriptionFiller {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + LongDescriptionFiller.class.getSimpleName(), Logger.ERROR);
+    /** Number of cached descriptions */
+    private static final int CACHE_SIZE = 1024;
+    /** Delay before filling starts, lets the EPG refresh or zap that triggered it settle */
+    private static final long FILL_DELAY = 3000;
+    /** Projection for reading programs without long description */
+    private static final String[] PROJECTION = {
+            Programs._ID, Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+    /** Selection of current and future programs without long description */
+    private static final String SELECTION = Programs.COLUMN_LONG_DESCRIPTION + " IS NULL AND "
+            + Programs.COLUMN_END_TIME_UTC_MILLIS + " > ?";
+    private final Context mContext;
+    private final DtvManager mDtvManager;
+    /** Descriptions keyed by service index in upper and event ID in lower 32 bits */
+    private final LruCache<Long, String> mCache = new LruCache<Long, String>(CACHE_SIZE);
+    /** Version of channel snapshot cached service indexes belong to */
+    private int mCacheVersion = -1;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    /** Incremented on every schedule, a running pass stops when it changes */
+    private volatile int mGeneration = 0;
+    /** Number of descriptions read from MW */
+    private int mMwReads = 0;
+    /** Number of descriptions found in cache */
+    private int mCacheHits = 0;
+    private final Runnable mFillRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            fill(mGeneration);
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context    Application context
+     * @param dtvManager DTV manager
+     */
+    public LongDescriptionFiller(Context context, DtvManager dtvManager) {
+        mContext = context;
+        mDtvManager = dtvManager;
+        mThread = new HandlerThread(LongDescriptionFiller.class.getSimpleName(),
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Schedules a filling pass. A pass that is already running stops at the next channel, so
+     * the new pass starts from the current live channel.
+     */
+    public void schedule() {
+        mGeneration++;
+        mHandler.removeCallbacks(mFillRunnable);
+        mHandler.postDelayed(mFillRunnable, FILL_DELAY);
+    }
+
+    /**
+     * Gets long description of an event, from cache if possible. Service indexes change with
+     * channel snapshot, so cache is cleared when a newer snapshot version is seen and callers
+     * still using an older snapshot bypass it.
+     *
+     * @param snapshotVersion Version of channel snapshot service index was taken from
+     * @param serviceIndex    Service index
+     * @param eventId         Event ID
+     * @return Long description, empty if MW has none
+     */
+    public String getLongDescription(int snapshotVersion, int serviceIndex, int eventId) {
+        Long key = ((long) serviceIndex << 32) | (eventId & 0xFFFFFFFFL);
+        boolean cached;
+        synchronized (this) {
+            if (snapshotVersion > mCacheVersion) {
+                mCache.evictAll();
+                mCacheVersion = snapshotVersion;
+            }
+            cached = snapshotVersion == mCacheVersion;
+        }
+        String description = cached ? mCache.get(key) : null;
+        if (description != null) {
+            synchronized (this) {
+                mCacheHits++;
+            }
+            return description;
+        }
+        description = mDtvManager.getEpgManager().getEventExtendedDescription(eventId,
+                serviceIndex);
+        if (description == null) {
+            description = "";
+        }
+        synchronized (this) {
+            // Snapshot may have changed during MW call
+            if (snapshotVersion == mCacheVersion) {
+                mCache.put(key, description);
+            }
+            mMwReads++;
+        }
+        return description;
+    }
+
+    /**
+     * Stops filler thread
+     */
+    public void release() {
+        mGeneration++;
+        mHandler.removeCallbacks(mFillRunnable);
+        mThread.quit();
+    }
+
+    private void fill(int generation) {
+        long start = SystemClock.elapsedRealtime();
+        ChannelManager channelManager = mDtvManager.getChannelManager();
+        ChannelSnapshot snapshot = channelManager.getSnapshot();
+        int dtvChannels = Math.min(channelManager.getDtvChannelListSize(), snapshot.size());
+        // Position of live channel, service index of a channel is its position + 1
+        int live = 0;
+        ChannelDescriptor liveChannel = snapshot.getByServiceId(mDtvManager.getActiveServiceId());
+        if (liveChannel != null) {
+            live = Math.max(snapshot.getChannels().indexOf(liveChannel), 0);
+        }
+        int filled = 0;
+        for (int distance = 0; distance < dtvChannels; distance++) {
+            int[] positions = {
+                    live + distance, live - distance
+            };
+            for (int i = 0; i < (distance == 0 ? 1 : 2); i++) {
+                int position = positions[i];
+                if (position < 0 || position >= dtvChannels) {
+                    continue;
+                }
+                if (generation != mGeneration
+                        || snapshot.getVersion() != channelManager.getSnapshotVersion()) {
+                    mLog.d("[fill][pass interrupted after " + filled + " programs]");
+                    return;
+                }
+                filled += fillChannel(snapshot.getVersion(), snapshot.getChannel(position),
+                        position + 1);
+            }
+        }
+        synchronized (this) {
+            mLog.i("[fill][" + filled + " programs][mw reads: " + mMwReads + "][cache hits: "
+                    + mCacheHits + "][" + (SystemClock.elapsedRealtime() - start) + " ms]");
+        }
+    }
+
+    /**
+     * Fills long descriptions of one channel
+     *
+     * @return Number of filled programs
+     */
+    private int fillChannel(int snapshotVersion, ChannelDescriptor channel, int serviceIndex) {
+        Cursor cursor = mContext.getContentResolver().query(
+                TvContract.buildProgramsUriForChannel(channel.getChannelId()), PROJECTION,
+                SELECTION, new String[] {
+                        String.valueOf(System.currentTimeMillis())
+                }, null);
+        if (cursor == null) {
+            mLog.e("[fillChannel][query failed for channel " + channel.getChannelId() + "]");
+            return 0;
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        try {
+            while (cursor.moveToNext()) {
+                int eventId = EpgProgram.decodeEventId(cursor.getBlob(1));
+                if (eventId == EpgProgram.INVALID_EVENT_ID) {
+                    continue;
+                }
+                operations.add(ContentProviderOperation.newUpdate(
+                        TvContract.buildProgramUri(cursor.getLong(0)))
+                        .withValue(Programs.COLUMN_LONG_DESCRIPTION,
+                                getLongDescription(snapshotVersion, serviceIndex, eventId))
+                        .build());
+            }
+        } finally {
+            cursor.close();
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return 0;
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        return operations.size();
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.epg;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.SparseBooleanArray;
+
+import com.iwedia.dtv.epg.EpgEvent;
+import com.iwedia.dtv.epg.EpgEventType;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+import com.iwedia.example.tvinput.utils.TimeUtils;
+
+/**
+ * Present and following events of all services, indexed by service index. Filled from
+ * present/following callbacks for whichever service they name; services reported within a short
+ * period are read from MW and written to TvProvider in one batch by {@link EpgNowNext}. Lookups
+ * are answered from memory, so banners and parental checks need no MW or database access.
+ */
+public class NowNextCache {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + NowNextCache.class.getSimpleName(), Logger.ERROR);
+    /** Time for collecting callbacks before they are written in one batch */
+    private static final long FLUSH_DELAY = 500;
+    /** Longest time a callback waits for flush while callbacks keep coming */
+    private static final long MAX_DELAY = 5000;
+    /** Key of flush task in EPG scheduler */
+    private static final String TASK_KEY = "nowNext";
+    private final Context mContext;
+    /** Scheduler of EPG thread, batches are written on it */
+    private final EpgTaskScheduler mScheduler;
+    /** Services reported since the last batch */
+    private final SparseBooleanArray mDirty = new SparseBooleanArray();
+    /** Time of the first callback not yet flushed */
+    private long mFirstDirtyTime = 0;
+    private EpgEvent[] mPresent = new EpgEvent[0];
+    private EpgEvent[] mFollowing = new EpgEvent[0];
+    /** Start and end times of present and following events in UTC millis */
+    private long[] mPresentStarts = new long[0];
+    private long[] mPresentEnds = new long[0];
+    private long[] mFollowingStarts = new long[0];
+    private long[] mFollowingEnds = new long[0];
+    /** Version of channel list cached events belong to */
+    private int mSnapshotVersion = -1;
+    private final Runnable mFlushRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param context   Application context
+     * @param scheduler Scheduler of EPG thread
+     */
+    public NowNextCache(Context context, EpgTaskScheduler scheduler) {
+        mContext = context;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Marks service whose present/following information was acquired, it is read and written
+     * with other services reported shortly after
+     *
+     * @param serviceIndex Service index
+     */
+    public synchronized void onAcquisitionFinished(int serviceIndex) {
+        mDirty.put(serviceIndex, true);
+        long now = SystemClock.uptimeMillis();
+        if (mFirstDirtyTime == 0) {
+            mFirstDirtyTime = now;
+        }
+        // Refresh yields with MW acquisition stopped and programs written, so flush may run there
+        mScheduler.submit(TASK_KEY, EpgTaskScheduler.Priority.NOW_NEXT, mFlushRunnable,
+                Math.min(now + FLUSH_DELAY, mFirstDirtyTime + MAX_DELAY), true);
+    }
+
+    /**
+     * Gets cached present or following event of a service
+     *
+     * @param serviceIndex Service index
+     * @param type         Present or following
+     * @return Event, or null if not known
+     */
+    public synchronized EpgEvent get(int serviceIndex, EpgEventType type) {
+        if (serviceIndex < 0 || serviceIndex >= mPresent.length) {
+            return null;
+        }
+        return type == EpgEventType.PRESENT_EVENT ? mPresent[serviceIndex]
+                : mFollowing[serviceIndex];
+    }
+
+    /**
+     * Gets cached event of a service running at given time
+     *
+     * @param serviceIndex Service index
+     * @param time         Time in UTC millis
+     * @return Present or following event running at given time, or null
+     */
+    public synchronized EpgEvent getEventAt(int serviceIndex, long time) {
+        if (serviceIndex < 0 || serviceIndex >= mPresent.length) {
+            return null;
+        }
+        // Present event may have ended before the next callback
+        if (mPresent[serviceIndex] != null && mPresentStarts[serviceIndex] <= time
+                && time < mPresentEnds[serviceIndex]) {
+            return mPresent[serviceIndex];
+        }
+        if (mFollowing[serviceIndex] != null && mFollowingStarts[serviceIndex] <= time
+                && time < mFollowingEnds[serviceIndex]) {
+            return mFollowing[serviceIndex];
+        }
+        return null;
+    }
+
+    /**
+     * Stores events of a service
+     *
+     * @param serviceIndex Service index
+     * @param present      Present event or null
+     * @param following    Following event or null
+     */
+    synchronized void put(int serviceIndex, EpgEvent present, EpgEvent following) {
+        if (serviceIndex < 0) {
+            return;
+        }
+        if (serviceIndex >= mPresent.length) {
+            grow(serviceIndex + 1);
+        }
+        mPresent[serviceIndex] = present;
+        mFollowing[serviceIndex] = following;
+        if (present != null) {
+            mPresentStarts[serviceIndex] = TimeUtils.toEpochMillis(present.getStartTime());
+            mPresentEnds[serviceIndex] = TimeUtils.toEpochMillis(present.getEndTime());
+        }
+        if (following != null) {
+            mFollowingStarts[serviceIndex] = TimeUtils.toEpochMillis(following.getStartTime());
+            mFollowingEnds[serviceIndex] = TimeUtils.toEpochMillis(following.getEndTime());
+        }
+    }
+
+    /**
+     * Drops cached events if they belong to a different channel list, service indexes are not
+     * valid across channel list changes
+     *
+     * @param version Version of current channel list
+     */
+    synchronized void setSnapshotVersion(int version) {
+        if (version != mSnapshotVersion) {
+            clearEvents();
+            mSnapshotVersion = version;
+        }
+    }
+
+    /**
+     * Drops all cached events and pending services
+     */
+    public synchronized void clear() {
+        mScheduler.cancel(TASK_KEY);
+        mDirty.clear();
+        mFirstDirtyTime = 0;
+        clearEvents();
+    }
+
+    private void clearEvents() {
+        mPresent = new EpgEvent[0];
+        mFollowing = new EpgEvent[0];
+        mPresentStarts = new long[0];
+        mPresentEnds = new long[0];
+        mFollowingStarts = new long[0];
+        mFollowingEnds = new long[0];
+    }
+
+    private void grow(int size) {
+        int capacity = Math.max(size, mPresent.length * 2);
+        EpgEvent[] present = new EpgEvent[capacity];
+        EpgEvent[] following = new EpgEvent[capacity];
+        System.arraycopy(mPresent, 0, present, 0, mPresent.length);
+        System.arraycopy(mFollowing, 0, following, 0, mFollowing.length);
+        mPresent = present;
+        mFollowing = following;
+        mPresentStarts = copyOf(mPresentStarts, capacity);
+        mPresentEnds = copyOf(mPresentEnds, capacity);
+        mFollowingStarts = copyOf(mFollowingStarts, capacity);
+        mFollowingEnds = copyOf(mFollowingEnds, capacity);
+    }
+
+    private static long[] copyOf(long[] array, int capacity) {
+        long[] copy = new long[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * Reads and writes all reported services, called on EPG thread
+     */
+    private void flush() {
+        int[] serviceIndexes;
+        synchronized (this) {
+            serviceIndexes = new int[mDirty.size()];
+            for (int i = 0; i < serviceIndexes.length; i++) {
+                serviceIndexes[i] = mDirty.keyAt(i);
+            }
+            mDirty.clear();
+            mFirstDirtyTime = 0;
+        }
+        if (serviceIndexes.length == 0) {
+            return;
+        }
+        mLog.d("[flush][services: " + serviceIndexes.length + "]");
+        new EpgNowNext(mContext, this, serviceIndexes).run();
+    }
+}
@@ -10,21 +10,24 @@
  */
 package com.iwedia.example.tvinput.engine.utils;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.media.tv.TvContentRating;
 import android.media.tv.TvContract;
-import android.net.Uri;
+import android.util.SparseArray;
 
 import com.iwedia.dtv.epg.EpgEvent;
-import com.iwedia.dtv.epg.IEpgControl;
 import com.iwedia.example.tvinput.TvService;
 import com.iwedia.example.tvinput.data.ChannelDescriptor;
+import com.iwedia.example.tvinput.data.ChannelSnapshot;
 import com.iwedia.example.tvinput.data.EpgProgram;
+import com.iwedia.example.tvinput.data.RatingTimeline;
 import com.iwedia.example.tvinput.engine.ChannelManager;
 import com.iwedia.example.tvinput.engine.DtvManager;
+import com.iwedia.example.tvinput.utils.ExampleSwitches;
 import com.iwedia.example.tvinput.utils.Logger;
+import com.iwedia.example.tvinput.utils.TimeUtils;
 
 import java.util.ArrayList;
 
@@ -40,18 +43,24 @@ public abstract class EpgRunnable implements Runnable {
     private static final String DOMAIN = "com.android.tv";
     /** Content rating system */
     private static final String RATING_SYSTEM = "DVB";
-    /** Projection for DB filling */
-    private static final String[] projection = {
-            TvContract.Programs.COLUMN_TITLE
-    };
     protected int mServiceIndex;
-    protected Long mFrequency;
+    protected long mFrequency;
     /** Application context */
     protected final Context mContext;
     /** DvbManager for accessing middleware API */
     protected DtvManager mDtvManager;
     /** Channel Manager */
-    private ChannelManager mChannelManager;
+    protected ChannelManager mChannelManager;
+    /** Channel list snapshot this runnable works with */
+    protected ChannelSnapshot mChannelSnapshot;
+    /** Writes programs of a channel, only those which have changed */
+    protected final ProgramReconciler mReconciler;
+    /**
+     * Programs of channels whose operations are built but not applied yet, by channel index.
+     * They are put into rating timeline once stored.
+     */
+    private final SparseArray<ArrayList<ContentValues>> mPendingRatings =
+            new SparseArray<ArrayList<ContentValues>>();
 
     /**
      * Contructor
@@ -63,6 +72,34 @@ public abstract class EpgRunnable implements Runnable {
         mContext = context;
         mDtvManager = DtvManager.getInstance();
         mChannelManager = mDtvManager.getChannelManager();
+        mChannelSnapshot = mChannelManager.getSnapshot();
+        mReconciler = new ProgramReconciler(context);
+    }
+
+    /**
+     * Takes current channel list snapshot to work with
+     */
+    protected void takeChannelSnapshot() {
+        mChannelSnapshot = mChannelManager.getSnapshot();
+    }
+
+    /**
+     * Checks if channel list was changed after this runnable took its snapshot
+     *
+     * @return True if snapshot is outdated
+     */
+    protected boolean isChannelSnapshotStale() {
+        return mChannelSnapshot.getVersion() != mChannelManager.getSnapshotVersion();
+    }
+
+    /**
+     * Creates content rating of a program
+     *
+     * @param rate DVB rate of the program
+     * @return Content rating
+     */
+    public static TvContentRating createRating(int rate) {
+        return TvContentRating.createRating(DOMAIN, RATING_SYSTEM, convertDVBRating(rate));
     }
 
     /**
@@ -159,8 +196,7 @@ public abstract class EpgRunnable implements Runnable {
         TvContentRating[] contentRatings;
         EpgProgram tempProg = null;
         String longDesc = "";
-        IEpgControl epgControl = mDtvManager.getEpgControl();
-        ChannelDescriptor channel = mChannelManager.getChannelByIndex(channelIndex - 1);
+        ChannelDescriptor channel = mChannelSnapshot.getChannel(channelIndex - 1);
         if (channel == null) {
             mLog.e("[makeProgramContentValues][channel not found]");
             return null;
@@ -169,26 +205,25 @@ public abstract class EpgRunnable implements Runnable {
             mLog.e("[makeProgramContentValues][event is null]");
             return null;
         }
-        startTimeMilis = event.getStartTime().getCalendar().getTimeInMillis();
-        endTimeMilis = event.getEndTime().getCalendar().getTimeInMillis();
+        startTimeMilis = TimeUtils.toEpochMillis(event.getStartTime());
+        endTimeMilis = TimeUtils.toEpochMillis(event.getEndTime());
         dirationMilis = endTimeMilis - startTimeMilis;
         if (dirationMilis <= 0) {
             mLog.e("[makeProgramContentValues][duration value is invalid]");
             return null;
         }
-        if (checkifExist(channel.getChannelId(), startTimeMilis, endTimeMilis)) {
-            mLog.w("[makeProgramContentValues][program exist]");
-            return null;
-        }
-        rating = TvContentRating.createRating(
-                DOMAIN, RATING_SYSTEM, convertDVBRating(event.getParentalRate()));
+        rating = createRating(event.getParentalRate());
         contentRatings = new TvContentRating[] {
                 rating
         };
         genre = convertDVBGenre(event.getGenre());
-        longDesc = epgControl.getEventExtendedDescription(
-                mDtvManager.getEpgManager().getEpgFilterID(),
-                event.getEventId(), channelIndex);
+        if (ExampleSwitches.ENABLE_LAZY_LONG_DESCRIPTION) {
+            // Filled later by LongDescriptionFiller
+            longDesc = null;
+        } else {
+            longDesc = mDtvManager.getLongDescriptionFiller().getLongDescription(
+                    mChannelSnapshot.getVersion(), channelIndex, event.getEventId());
+        }
         tempProg = new EpgProgram.Builder()
                 .setChannelId(channel.getChannelId())
                 .setTitle(event.getName())
@@ -197,56 +232,112 @@ public abstract class EpgRunnable implements Runnable {
                 .setLongDescription(longDesc)
                 .setStartTimeUtcMillis(startTimeMilis)
                 .setEndTimeUtcMillis(endTimeMilis)
+                .setEventId(event.getEventId())
                 .setContentRatings(contentRatings).build();
         return tempProg.toContentValues();
     }
 
     protected boolean addProgram(EpgEvent event, int channelIndex) {
-        ContentValues values = makeProgramContentValues(event, channelIndex);
-        if (values == null) {
+        ArrayList<EpgEvent> events = new ArrayList<EpgEvent>(1);
+        events.add(event);
+        return addPrograms(events, channelIndex);
+    }
+
+    /**
+     * Stores events of one channel. Stored programs are matched with events by event ID, only
+     * new and changed ones are written and programs of cancelled events are deleted.
+     *
+     * @param events       Events of the channel, sorted by start time
+     * @param channelIndex Channel index
+     * @return True if programs are stored
+     */
+    protected boolean addPrograms(ArrayList<EpgEvent> events, int channelIndex) {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        if (!buildProgramOperations(events, channelIndex, operations)) {
             return false;
         }
-        mLog.d("[addProgram][begin]");
-        Uri uri = mContext.getContentResolver().insert(TvContract.Programs.CONTENT_URI, values);
-        mLog.d("[addProgram][end] " + uri);
-        return true;
+        mLog.d("[addPrograms][begin]");
+        boolean stored = applyProgramOperations(operations, new int[] {
+                channelIndex
+        });
+        mLog.d("[addPrograms][end]");
+        return stored;
     }
 
-    protected void addPrograms(ArrayList<EpgEvent> events, int channelIndex) {
+    /**
+     * Builds database operations which store events of one channel, without applying them
+     *
+     * @param events       Events of the channel, sorted by start time
+     * @param channelIndex Channel index
+     * @param operations   List to which operations are added
+     * @return True if operations are built
+     */
+    protected boolean buildProgramOperations(ArrayList<EpgEvent> events, int channelIndex,
+            ArrayList<ContentProviderOperation> operations) {
+        ChannelDescriptor channel = mChannelSnapshot.getChannel(channelIndex - 1);
+        if (channel == null) {
+            mLog.e("[buildProgramOperations][channel not found]");
+            return false;
+        }
         ArrayList<ContentValues> list = new ArrayList<ContentValues>();
+        long lastEndTime = Long.MIN_VALUE;
         for (EpgEvent event : events) {
             ContentValues values = makeProgramContentValues(event, channelIndex);
-            if (values != null) {
-                list.add(values);
+            if (values == null) {
+                continue;
+            }
+            // Skip events overlapping the previous one, TIF does not allow overlapping programs
+            if (values.getAsLong(TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS)
+                    < lastEndTime) {
+                mLog.w("[buildProgramOperations][event overlaps previous one]["
+                        + event.getEventId() + "]");
+                continue;
             }
+            lastEndTime = values.getAsLong(TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS);
+            list.add(values);
         }
-        ContentValues array[] = new ContentValues[list.size()];
-        list.toArray(array);
-        mLog.d("[addPrograms][begin]");
-        mContext.getContentResolver().bulkInsert(TvContract.Programs.CONTENT_URI, array);
-        mLog.d("[addPrograms][end]");
+        int operationCount = operations.size();
+        if (!mReconciler.diff(channel.getChannelId(), list, operations)) {
+            return false;
+        }
+        // Rating checks read the timeline instead of the database, so it gets only stored programs
+        if (operations.size() == operationCount) {
+            RatingTimeline.getInstance().update(channel.getChannelId(), list);
+        } else {
+            synchronized (mPendingRatings) {
+                mPendingRatings.put(channelIndex, list);
+            }
+        }
+        return true;
     }
 
     /**
-     * This method is used to check if the current event is already present in the DB
+     * Applies operations built by {@link #buildProgramOperations(ArrayList, int, ArrayList)}.
+     * Rating timeline of given channels is updated only if operations are stored.
      *
-     * @param program Program to check in DB
-     * @return True if the program is present in the DB, false otherwise
+     * @param operations     Operations to apply
+     * @param channelIndexes Indexes of channels operations belong to
+     * @return True if operations are applied
      */
-    protected boolean checkifExist(long channelID, long startTime, long endTime) {
-        Uri uri = TvContract.buildProgramsUriForChannel(channelID, startTime, endTime);
-        Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null, null);
-        if (cursor == null || cursor.getCount() == 0) {
-            cursor.close();
-            mLog.w("[checkifExist][item does not exist in DB][[uri: " + uri.toString() + "]");
-            return false;
-        } else {
-            cursor.close();
-            return true;
+    protected boolean applyProgramOperations(ArrayList<ContentProviderOperation> operations,
+            int[] channelIndexes) {
+        boolean applied = mReconciler.apply(operations);
+        RatingTimeline timeline = RatingTimeline.getInstance();
+        synchronized (mPendingRatings) {
+            for (int channelIndex : channelIndexes) {
+                ArrayList<ContentValues> programs = mPendingRatings.get(channelIndex);
+                if (programs == null) {
+                    continue;
+                }
+                mPendingRatings.remove(channelIndex);
+                ChannelDescriptor channel = mChannelSnapshot.getChannel(channelIndex - 1);
+                if (applied && channel != null) {
+                    timeline.update(channel.getChannelId(), programs);
+                }
+            }
         }
-        /**
-         * TODO Implement program update
-         */
+        return applied;
     }
 
     protected void dumpEvent(EpgEvent event) {
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.media.tv.TvContract.Programs;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.LongSparseArray;
+import android.util.SparseArray;
+
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.data.EpgProgram;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Brings stored programs of one channel in line with programs built from MW events. Stored
+ * programs are matched by MW event ID kept in internal provider data column, programs stored
+ * without event ID are matched by start time. Only new, changed and cancelled programs are
+ * written, all in one batch.
+ */
+public class ProgramReconciler {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + ProgramReconciler.class.getSimpleName(), Logger.ERROR);
+    /** Columns compared when deciding if a program has changed, long description is left out */
+    private static final String[] COMPARED_COLUMNS = {
+            Programs.COLUMN_TITLE,
+            Programs.COLUMN_START_TIME_UTC_MILLIS,
+            Programs.COLUMN_END_TIME_UTC_MILLIS,
+            Programs.COLUMN_SHORT_DESCRIPTION,
+            Programs.COLUMN_CANONICAL_GENRE,
+            Programs.COLUMN_CONTENT_RATING
+    };
+    /** Projection for reading stored programs */
+    private static final String[] PROJECTION = {
+            Programs._ID,
+            Programs.COLUMN_INTERNAL_PROVIDER_DATA,
+            Programs.COLUMN_TITLE,
+            Programs.COLUMN_START_TIME_UTC_MILLIS,
+            Programs.COLUMN_END_TIME_UTC_MILLIS,
+            Programs.COLUMN_SHORT_DESCRIPTION,
+            Programs.COLUMN_CANONICAL_GENRE,
+            Programs.COLUMN_CONTENT_RATING
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_EVENT_ID = 1;
+    private static final int FIRST_COMPARED_COLUMN = 2;
+    /** Application context */
+    private final Context mContext;
+    /** Number of inserted programs since creation */
+    private int mInserted = 0;
+    /** Number of updated programs since creation */
+    private int mUpdated = 0;
+    /** Number of deleted programs since creation */
+    private int mDeleted = 0;
+    /** Number of programs left untouched since creation */
+    private int mUnchanged = 0;
+
+    /**
+     * Stored program
+     */
+    private static final class StoredProgram {
+
+        private final long mId;
+        private final String[] mValues = new String[COMPARED_COLUMNS.length];
+
+        StoredProgram(Cursor cursor) {
+            mId = cursor.getLong(COLUMN_ID);
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = cursor.getString(FIRST_COMPARED_COLUMN + i);
+            }
+        }
+
+        long getStartTime() {
+            return Long.parseLong(mValues[1]);
+        }
+
+        boolean hasSameContent(ContentValues values) {
+            for (int i = 0; i < COMPARED_COLUMNS.length; i++) {
+                if (!TextUtils.equals(mValues[i], values.getAsString(COMPARED_COLUMNS[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context Application context
+     */
+    public ProgramReconciler(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Reconciles programs of one channel. Stored programs overlapping the time span of given
+     * programs which are not among them are deleted.
+     *
+     * @param channelId Channel ID
+     * @param programs  Programs built from MW events, must carry event IDs and channel ID
+     * @return True if database was brought in line with given programs
+     */
+    public boolean reconcile(long channelId, List<ContentValues> programs) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        if (!diff(channelId, programs, operations)) {
+            return false;
+        }
+        return apply(operations);
+    }
+
+    /**
+     * Builds operations which reconcile programs of one channel, without applying them
+     *
+     * @param channelId  Channel ID
+     * @param programs   Programs built from MW events, must carry event IDs and channel ID
+     * @param operations List to which operations are added
+     * @return True if stored programs could be read
+     */
+    public boolean diff(long channelId, List<ContentValues> programs,
+            ArrayList<ContentProviderOperation> operations) {
+        if (programs.isEmpty()) {
+            return true;
+        }
+        long spanStart = Long.MAX_VALUE;
+        long spanEnd = Long.MIN_VALUE;
+        for (ContentValues values : programs) {
+            spanStart = Math.min(spanStart,
+                    values.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS));
+            spanEnd = Math.max(spanEnd, values.getAsLong(Programs.COLUMN_END_TIME_UTC_MILLIS));
+        }
+        SparseArray<StoredProgram> byEventId = new SparseArray<StoredProgram>();
+        LongSparseArray<StoredProgram> byStartTime = new LongSparseArray<StoredProgram>();
+        if (!loadStored(channelId, spanStart, spanEnd, byEventId, byStartTime, operations)) {
+            return false;
+        }
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = 0;
+        for (ContentValues values : programs) {
+            int eventId = EpgProgram.decodeEventId(values.getAsByteArray(
+                    Programs.COLUMN_INTERNAL_PROVIDER_DATA));
+            StoredProgram stored = byEventId.get(eventId);
+            if (stored != null) {
+                byEventId.remove(eventId);
+            } else {
+                long startTime = values.getAsLong(Programs.COLUMN_START_TIME_UTC_MILLIS);
+                stored = byStartTime.get(startTime);
+                if (stored != null) {
+                    byStartTime.remove(startTime);
+                }
+            }
+            if (stored == null) {
+                inserted++;
+                operations.add(ContentProviderOperation.newInsert(Programs.CONTENT_URI)
+                        .withValues(values).build());
+            } else if (stored.hasSameContent(values)) {
+                unchanged++;
+            } else {
+                updated++;
+                operations.add(ContentProviderOperation.newUpdate(
+                        TvContract.buildProgramUri(stored.mId)).withValues(values).build());
+            }
+        }
+        // Stored programs not reported by MW any more
+        int deleted = byEventId.size() + byStartTime.size();
+        for (int i = 0; i < byEventId.size(); i++) {
+            operations.add(ContentProviderOperation.newDelete(
+                    TvContract.buildProgramUri(byEventId.valueAt(i).mId)).build());
+        }
+        for (int i = 0; i < byStartTime.size(); i++) {
+            operations.add(ContentProviderOperation.newDelete(
+                    TvContract.buildProgramUri(byStartTime.valueAt(i).mId)).build());
+        }
+        mLog.d("[diff][channel " + channelId + "][inserted: " + inserted + "][updated: "
+                + updated + "][deleted: " + deleted + "][unchanged: " + unchanged + "]");
+        synchronized (this) {
+            mInserted += inserted;
+            mUpdated += updated;
+            mDeleted += deleted;
+            mUnchanged += unchanged;
+        }
+        return true;
+    }
+
+    /**
+     * Applies operations built by {@link #diff(long, List, ArrayList)}, possibly for several
+     * channels, in one batch
+     *
+     * @param operations Operations to apply
+     * @return True if operations are applied
+     */
+    public boolean apply(ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return true;
+        }
+        try {
+            mContext.getContentResolver().applyBatch(TvContract.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+            return false;
+        } catch (OperationApplicationException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads stored programs overlapping given time span. Programs with duplicated keys are
+     * scheduled for deletion.
+     */
+    private boolean loadStored(long channelId, long spanStart, long spanEnd,
+            SparseArray<StoredProgram> byEventId, LongSparseArray<StoredProgram> byStartTime,
+            ArrayList<ContentProviderOperation> operations) {
+        Cursor cursor = mContext.getContentResolver().query(
+                TvContract.buildProgramsUriForChannel(channelId, spanStart, spanEnd),
+                PROJECTION, null, null, null);
+        if (cursor == null) {
+            mLog.e("[loadStored][query failed for channel " + channelId + "]");
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                StoredProgram stored = new StoredProgram(cursor);
+                // Programs which only touch the span are not part of it
+                long startTime = stored.getStartTime();
+                long endTime = cursor.getLong(FIRST_COMPARED_COLUMN + 2);
+                if (endTime <= spanStart || startTime >= spanEnd) {
+                    continue;
+                }
+                int eventId = EpgProgram.decodeEventId(cursor.getBlob(COLUMN_EVENT_ID));
+                boolean duplicated;
+                if (eventId != EpgProgram.INVALID_EVENT_ID) {
+                    duplicated = byEventId.get(eventId) != null;
+                    if (!duplicated) {
+                        byEventId.put(eventId, stored);
+                    }
+                } else {
+                    duplicated = byStartTime.get(startTime) != null;
+                    if (!duplicated) {
+                        byStartTime.put(startTime, stored);
+                    }
+                }
+                if (duplicated) {
+                    operations.add(ContentProviderOperation.newDelete(
+                            TvContract.buildProgramUri(stored.mId)).build());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * @return Number of inserted, updated and deleted programs since creation
+     */
+    public synchronized int getChangedPrograms() {
+        return mInserted + mUpdated + mDeleted;
+    }
+
+    /**
+     * @return Number of reconciled programs since creation, changed or not
+     */
+    public synchronized int getTotalPrograms() {
+        return mInserted + mUpdated + mUnchanged;
+    }
+
+    /**
+     * @return Counters of written programs, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "inserted: " + mInserted + ", updated: " + mUpdated + ", deleted: " + mDeleted
+                + ", unchanged: " + mUnchanged;
+    }
+}
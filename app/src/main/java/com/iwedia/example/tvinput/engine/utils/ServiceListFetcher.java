@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.utils;
+
+import android.os.SystemClock;
+
+import com.iwedia.dtv.service.IServiceControl;
+import com.iwedia.dtv.service.ServiceDescriptor;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads service descriptors from MW service list in chunks on a small pool of worker threads.
+ * Every chunk is one task, so several MW round-trips are in flight at once, and results are
+ * assembled in service list order.
+ */
+public class ServiceListFetcher {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + ServiceListFetcher.class.getSimpleName(), Logger.ERROR);
+    /** Default number of descriptors read by one task */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+    /** Default number of worker threads */
+    public static final int DEFAULT_THREAD_COUNT = 3;
+    /** MW service control */
+    private final IServiceControl mServiceControl;
+    /** Number of descriptors read by one task */
+    private int mChunkSize = DEFAULT_CHUNK_SIZE;
+    /** Number of worker threads */
+    private int mThreadCount = DEFAULT_THREAD_COUNT;
+
+    /**
+     * Constructor
+     *
+     * @param serviceControl MW service control used for reading descriptors
+     */
+    public ServiceListFetcher(IServiceControl serviceControl) {
+        mServiceControl = serviceControl;
+    }
+
+    /**
+     * Sets number of descriptors read by one task
+     *
+     * @param chunkSize Chunk size, must be positive
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+        }
+        mChunkSize = chunkSize;
+    }
+
+    /**
+     * Sets number of worker threads
+     *
+     * @param threadCount Thread count, must be positive
+     */
+    public void setThreadCount(int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Reads service descriptors
+     *
+     * @param listIndex  Index of MW service list
+     * @param firstIndex Index of first service to read
+     * @param count      Number of services to read
+     * @return Descriptors in service list order
+     */
+    public ServiceDescriptor[] fetch(int listIndex, int firstIndex, int count) {
+        ServiceDescriptor[] descriptors = new ServiceDescriptor[Math.max(count, 0)];
+        if (count <= 0) {
+            return descriptors;
+        }
+        final long fetchStart = SystemClock.elapsedRealtime();
+        int chunkSize = mChunkSize;
+        int chunkCount = (count + chunkSize - 1) / chunkSize;
+        if (chunkCount == 1) {
+            new ChunkTask(listIndex, firstIndex, 0, count, descriptors).call();
+            mLog.d("[fetch][" + count + " services][" + (SystemClock.elapsedRealtime()
+                    - fetchStart) + " ms]");
+            return descriptors;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(mThreadCount,
+                chunkCount));
+        ArrayList<ChunkTask> tasks = new ArrayList<ChunkTask>(chunkCount);
+        ArrayList<Future<Long>> futures = new ArrayList<Future<Long>>(chunkCount);
+        try {
+            for (int offset = 0; offset < count; offset += chunkSize) {
+                ChunkTask task = new ChunkTask(listIndex, firstIndex, offset,
+                        Math.min(offset + chunkSize, count), descriptors);
+                tasks.add(task);
+                futures.add(executor.submit(task));
+            }
+            for (int i = 0; i < chunkCount; i++) {
+                ChunkTask task = tasks.get(i);
+                long duration;
+                try {
+                    duration = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    duration = task.call();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    duration = task.call();
+                }
+                mLog.d("[fetch][chunk " + i + "][" + task.mFrom + "-" + (task.mTo - 1) + "]["
+                        + duration + " ms]");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        mLog.d("[fetch][" + count + " services][" + chunkCount + " chunks]["
+                + (SystemClock.elapsedRealtime() - fetchStart) + " ms]");
+        return descriptors;
+    }
+
+    /**
+     * Reads one chunk of descriptors into shared result array
+     */
+    private class ChunkTask implements Callable<Long> {
+
+        private final int mListIndex;
+        private final int mFirstIndex;
+        private final int mFrom;
+        private final int mTo;
+        private final ServiceDescriptor[] mDescriptors;
+
+        ChunkTask(int listIndex, int firstIndex, int from, int to,
+                ServiceDescriptor[] descriptors) {
+            mListIndex = listIndex;
+            mFirstIndex = firstIndex;
+            mFrom = from;
+            mTo = to;
+            mDescriptors = descriptors;
+        }
+
+        /**
+         * @return Time spent reading the chunk in milliseconds
+         */
+        @Override
+        public Long call() {
+            long start = SystemClock.elapsedRealtime();
+            for (int i = mFrom; i < mTo; i++) {
+                mDescriptors[i] = mServiceControl.getServiceDescriptor(mListIndex,
+                        mFirstIndex + i);
+            }
+            return SystemClock.elapsedRealtime() - start;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.engine.utils;
+
+import android.os.SystemClock;
+
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs initialization steps on a small thread pool in dependency order. Steps without mutual
+ * dependencies run in parallel. Deferred steps are held back until {@link #startDeferred()} is
+ * called, or until some thread waits for them.
+ * <p>
+ * Every step has a readiness future which is done when the step has finished. A step whose
+ * dependency failed is not run and fails too. Time spent in each step is logged when all steps
+ * are finished.
+ */
+public class StartupGraph {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + StartupGraph.class.getSimpleName(), Logger.ERROR);
+    /** Steps by name, in order of adding */
+    private final LinkedHashMap<String, Step> mSteps = new LinkedHashMap<String, Step>();
+    /** Number of worker threads */
+    private final int mThreadCount;
+    /** Executor that runs the steps, created on start */
+    private ExecutorService mExecutor;
+    /** Time when graph was started */
+    private long mStartTime;
+    /** True if deferred steps are allowed to run */
+    private boolean mDeferredStarted = false;
+    /** Number of steps that are not finished */
+    private int mPendingSteps;
+
+    /**
+     * Constructor
+     *
+     * @param threadCount Number of worker threads
+     */
+    public StartupGraph(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Adds a step. Dependencies must be added before the steps that depend on them.
+     *
+     * @param name         Unique step name
+     * @param action       Work done by the step
+     * @param deferred     True if step should wait for {@link #startDeferred()}
+     * @param dependencies Names of steps that must finish before this one starts
+     */
+    public synchronized void addStep(String name, Runnable action, boolean deferred,
+            String... dependencies) {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Graph is already started");
+        }
+        if (mSteps.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicated step: " + name);
+        }
+        Step step = new Step(name, action, deferred);
+        for (String dependency : dependencies) {
+            Step parent = mSteps.get(dependency);
+            if (parent == null) {
+                throw new IllegalArgumentException("Unknown dependency: " + dependency);
+            }
+            parent.mDependents.add(step);
+            step.mPendingDependencies++;
+        }
+        mSteps.put(name, step);
+    }
+
+    /**
+     * Starts all steps that are not deferred and have no dependencies
+     */
+    public synchronized void start() {
+        if (mExecutor != null) {
+            return;
+        }
+        mStartTime = SystemClock.elapsedRealtime();
+        mPendingSteps = mSteps.size();
+        mExecutor = Executors.newFixedThreadPool(mThreadCount);
+        for (Step step : mSteps.values()) {
+            scheduleIfReady(step);
+        }
+    }
+
+    /**
+     * Allows deferred steps to run
+     */
+    public synchronized void startDeferred() {
+        if (mDeferredStarted) {
+            return;
+        }
+        mLog.d("[startDeferred]");
+        mDeferredStarted = true;
+        if (mExecutor != null) {
+            for (Step step : mSteps.values()) {
+                scheduleIfReady(step);
+            }
+        }
+    }
+
+    /**
+     * Gets readiness future of a step
+     *
+     * @param name Step name
+     * @return Future that is done when the step has finished
+     */
+    public Future<Void> getReadiness(String name) {
+        Step step;
+        synchronized (this) {
+            step = mSteps.get(name);
+        }
+        if (step == null) {
+            throw new IllegalArgumentException("Unknown step: " + name);
+        }
+        return step.mTask;
+    }
+
+    /**
+     * Waits until a step has finished. Waiting for a deferred step starts deferred steps.
+     *
+     * @param name          Step name
+     * @param timeoutMillis Maximum time to wait
+     * @return True if step has finished successfully
+     */
+    public boolean await(String name, long timeoutMillis) {
+        Future<Void> readiness = getReadiness(name);
+        if (readiness.isDone()) {
+            return isSuccessful(readiness);
+        }
+        startDeferred();
+        try {
+            readiness.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            mLog.e("[await][step failed: " + name + "]");
+        } catch (CancellationException e) {
+            mLog.e("[await][step cancelled: " + name + "]");
+        } catch (TimeoutException e) {
+            mLog.e("[await][timeout waiting for step: " + name + "]");
+        }
+        return false;
+    }
+
+    /**
+     * Checks if a step has finished
+     *
+     * @param name Step name
+     * @return True if step has finished, successfully or not
+     */
+    public boolean isDone(String name) {
+        return getReadiness(name).isDone();
+    }
+
+    /**
+     * Stops worker threads. Steps that have not started will never run, they are cancelled so
+     * nobody waits for them.
+     */
+    public synchronized void shutdown() {
+        if (mExecutor == null) {
+            return;
+        }
+        mExecutor.shutdownNow();
+        for (Step step : mSteps.values()) {
+            // Scheduled steps not taken by a worker were returned by shutdownNow
+            if (!step.mStarted) {
+                step.mTask.cancel(false);
+            }
+        }
+    }
+
+    private boolean isSuccessful(Future<Void> readiness) {
+        try {
+            readiness.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Step failed
+        } catch (CancellationException e) {
+            // Step did not run
+        }
+        return false;
+    }
+
+    private void scheduleIfReady(Step step) {
+        if (step.mScheduled || step.mPendingDependencies > 0
+                || (step.mDeferred && !mDeferredStarted) || mExecutor.isShutdown()) {
+            return;
+        }
+        step.mScheduled = true;
+        mExecutor.execute(step.mTask);
+    }
+
+    private synchronized void onStepFinished(Step step) {
+        boolean successful = isSuccessful(step.mTask);
+        for (Step dependent : step.mDependents) {
+            dependent.mPendingDependencies--;
+            if (successful) {
+                scheduleIfReady(dependent);
+            } else if (!dependent.mScheduled) {
+                // Dependent is finished as failed, which fails its own dependents in turn
+                mLog.e("[onStepFinished][" + dependent.mName + " skipped, " + step.mName
+                        + " failed]");
+                dependent.mScheduled = true;
+                dependent.mTask.fail(new IllegalStateException("Dependency failed: "
+                        + step.mName));
+            }
+        }
+        mPendingSteps--;
+        if (mPendingSteps == 0) {
+            mExecutor.shutdown();
+            logTimings();
+        }
+    }
+
+    private void logTimings() {
+        StringBuilder report = new StringBuilder("[startup]");
+        for (Step step : mSteps.values()) {
+            report.append('[').append(step.mName).append(": ");
+            if (!step.mStarted) {
+                report.append("skipped]");
+                continue;
+            }
+            report.append(step.mEndTime - step.mBeginTime).append(" ms @")
+                    .append(step.mBeginTime - mStartTime).append(" ms]");
+        }
+        report.append("[total: ").append(SystemClock.elapsedRealtime() - mStartTime)
+                .append(" ms]");
+        mLog.i(report.toString());
+    }
+
+    /**
+     * One initialization step
+     */
+    private class Step {
+
+        private final String mName;
+        private final boolean mDeferred;
+        private final StepTask mTask;
+        private final ArrayList<Step> mDependents = new ArrayList<Step>();
+        private int mPendingDependencies = 0;
+        private boolean mScheduled = false;
+        /** True once a worker has started the step */
+        private volatile boolean mStarted = false;
+        private long mBeginTime;
+        private long mEndTime;
+
+        Step(String name, final Runnable action, boolean deferred) {
+            mName = name;
+            mDeferred = deferred;
+            mTask = new StepTask(new Runnable() {
+
+                @Override
+                public void run() {
+                    mStarted = true;
+                    mBeginTime = SystemClock.elapsedRealtime();
+                    try {
+                        action.run();
+                    } catch (RuntimeException e) {
+                        mLog.e("[step failed][" + mName + "]");
+                        throw e;
+                    } finally {
+                        mEndTime = SystemClock.elapsedRealtime();
+                        mLog.d("[step finished][" + mName + "][" + (mEndTime - mBeginTime)
+                                + " ms]");
+                    }
+                }
+            }, this);
+        }
+    }
+
+    /**
+     * Readiness future of a step
+     */
+    private class StepTask extends FutureTask<Void> {
+
+        private final Step mStep;
+
+        StepTask(Runnable action, Step step) {
+            super(action, null);
+            mStep = step;
+        }
+
+        /**
+         * Finishes the step as failed without running it
+         */
+        void fail(Throwable cause) {
+            setException(cause);
+        }
+
+        @Override
+        protected void done() {
+            onStepFinished(mStep);
+        }
+    }
+}
@@ -23,9 +23,11 @@ import android.widget.TextView;
 
 import com.iwedia.dtv.scan.IScanCallback;
 import com.iwedia.dtv.scan.ScanInstallStatus;
+import com.iwedia.dtv.service.ServiceType;
 import com.iwedia.dtv.types.InternalException;
 import com.iwedia.example.tvinput.R;
 import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.engine.ChannelManager;
 import com.iwedia.example.tvinput.engine.DtvManager;
 import com.iwedia.example.tvinput.engine.RouteManager;
 import com.iwedia.example.tvinput.utils.Logger;
@@ -188,6 +190,8 @@ public class SetupActivity extends Activity implements IScanCallback {
         mLog.d("[installServiceRADIOName]["
                 + mRouteManager.getInstallRouteDescription(routeId)
                 + "][name: " + name + "]");
+        mDtvManager.getChannelManager().onServiceFound(routeId, name,
+                ServiceType.DIG_RAD);
         mHandler.sendEmptyMessage(ON_NEW_CHANNEL_FOUND);
     }
 
@@ -203,6 +207,8 @@ public class SetupActivity extends Activity implements IScanCallback {
         mLog.d("[installServiceTVName]["
                 + mRouteManager.getInstallRouteDescription(routeId)
                 + "][name: " + name + "]");
+        mDtvManager.getChannelManager().onServiceFound(routeId, name,
+                ServiceType.DIG_TV);
         mHandler.sendEmptyMessage(ON_NEW_CHANNEL_FOUND);
     }
 
@@ -233,7 +239,15 @@ public class SetupActivity extends Activity implements IScanCallback {
     public void scanFinished(int routeId) {
         mLog.d("[scanFinished]["
                 + mRouteManager.getInstallRouteDescription(routeId) + "]");
-        mDtvManager.getChannelManager().refreshChannelList();
+        ChannelManager channelManager = mDtvManager.getChannelManager();
+        boolean allRoutesFinished = channelManager.onScanFinished(routeId);
+        mProgressBar.setProgress(channelManager.getScanProgress());
+        if (!allRoutesFinished) {
+            // Wait for other routes
+            return;
+        }
+        channelManager.stopStreamingInstall();
+        channelManager.refreshChannelList();
         onClickScanAction(null);
         // Send an intent to application that is safe to pull channels from TIF
         // database
@@ -253,7 +267,8 @@ public class SetupActivity extends Activity implements IScanCallback {
         mLog.d("[scanProgressChanged]["
                 + mRouteManager.getInstallRouteDescription(routeId)
                 + "][progres: " + value + "]");
-        mProgressBar.setProgress(value);
+        mProgressBar.setProgress(mDtvManager.getChannelManager().onScanProgressChanged(routeId,
+                value));
     }
 
     @Override
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.utils;
+
+import android.content.Context;
+
+import com.iwedia.dtv.service.ServiceType;
+import com.iwedia.dtv.service.SourceType;
+import com.iwedia.example.tvinput.TvService;
+import com.iwedia.example.tvinput.data.ChannelDescriptor;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary copy of the channel list stored in application files directory. It is read
+ * through a memory mapped buffer, so channels are available right after process start without
+ * waiting for a TvProvider query.
+ * <p>
+ * Cache is stamped with number of channel rows and the highest row ID, which are compared with
+ * TvProvider to decide if the cache is still valid.
+ */
+public class ChannelCache {
+
+    /** Object used to write to logcat output */
+    private final Logger mLog = new Logger(TvService.APP_NAME
+            + ChannelCache.class.getSimpleName(), Logger.ERROR);
+    /** Name of cache file */
+    private static final String CACHE_FILE = "channel_cache.bin";
+    /** File identifier, "IWCH" */
+    private static final int MAGIC = 0x49574348;
+    /** Version of file format */
+    private static final int FORMAT_VERSION = 1;
+    /** Encoding of strings in cache file */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Cache file */
+    private final File mFile;
+
+    /**
+     * Stamp of a channel list, used for validating cache against TvProvider
+     */
+    public static final class Stamp {
+
+        public final int rowCount;
+        public final long maxId;
+
+        public Stamp(int rowCount, long maxId) {
+            this.rowCount = rowCount;
+            this.maxId = maxId;
+        }
+
+        /**
+         * Creates stamp of given channel list
+         */
+        public static Stamp of(List<ChannelDescriptor> channels) {
+            long maxId = 0;
+            for (int i = 0; i < channels.size(); i++) {
+                maxId = Math.max(maxId, channels.get(i).getChannelId());
+            }
+            return new Stamp(channels.size(), maxId);
+        }
+
+        public boolean matches(Stamp other) {
+            return other != null && rowCount == other.rowCount && maxId == other.maxId;
+        }
+
+        @Override
+        public String toString() {
+            return "rows: " + rowCount + ", max id: " + maxId;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context Application context
+     */
+    public ChannelCache(Context context) {
+        mFile = new File(context.getFilesDir(), CACHE_FILE);
+    }
+
+    /**
+     * Reads stamp and channels from cache file
+     *
+     * @param channels List to which cached channels are added
+     * @return Stamp of cached channels or null if cache is missing or corrupted, in which case
+     * nothing is added to the list
+     */
+    public Stamp read(List<ChannelDescriptor> channels) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel fileChannel = file.getChannel();
+            MappedByteBuffer buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    fileChannel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                mLog.w("[read][unknown cache format]");
+                return null;
+            }
+            Stamp stamp = new Stamp(buffer.getInt(), buffer.getLong());
+            int count = buffer.getInt();
+            SourceType[] sourceTypes = SourceType.values();
+            ServiceType[] serviceTypes = ServiceType.values();
+            ArrayList<ChannelDescriptor> read = new ArrayList<ChannelDescriptor>(count);
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < count; i++) {
+                long id = buffer.getLong();
+                int serviceId = buffer.getInt();
+                int type = buffer.get();
+                int serviceType = buffer.get();
+                if (type < 0 || type >= sourceTypes.length || serviceType < 0
+                        || serviceType >= serviceTypes.length) {
+                    mLog.w("[read][invalid channel type]");
+                    return null;
+                }
+                String displayNumber = readString(buffer, scratch);
+                String name = readString(buffer, scratch);
+                String url = readString(buffer, scratch);
+                read.add(new ChannelDescriptor(id, displayNumber, name, url, serviceId,
+                        sourceTypes[type], serviceTypes[serviceType]));
+            }
+            channels.addAll(read);
+            return stamp;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (BufferUnderflowException e) {
+            mLog.w("[read][truncated cache file]");
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes channels to cache file. File is replaced atomically, so a failed write leaves the
+     * previous cache in place.
+     *
+     * @param channels Channels to store, all must have their row IDs set
+     */
+    public void write(List<ChannelDescriptor> channels) {
+        Stamp stamp = Stamp.of(channels);
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(stamp.rowCount);
+            out.writeLong(stamp.maxId);
+            out.writeInt(channels.size());
+            for (int i = 0; i < channels.size(); i++) {
+                ChannelDescriptor channel = channels.get(i);
+                out.writeLong(channel.getChannelId());
+                out.writeInt(channel.getServiceId());
+                out.writeByte(channel.getType().ordinal());
+                out.writeByte(channel.getServiceType().ordinal());
+                writeString(out, channel.getDisplayNumber());
+                writeString(out, channel.getName());
+                writeString(out, channel.getUrl());
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(mFile)) {
+                mLog.e("[write][unable to replace cache file]");
+            }
+            mLog.d("[write][" + stamp + "]");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes cache file
+     */
+    public void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            mLog.e("[clear][unable to delete cache file]");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(MappedByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, UTF_8);
+    }
+}
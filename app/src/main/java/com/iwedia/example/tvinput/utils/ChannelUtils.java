@@ -91,6 +91,19 @@ public class ChannelUtils {
         }
     }
 
+    /**
+     * Formats channel display number in "01" format
+     *
+     * @param displayNumber Channel number
+     * @return Formatted channel number
+     */
+    public static String formatDisplayNumber(int displayNumber) {
+        if (displayNumber >= 0 && displayNumber < 10) {
+            return "0" + displayNumber;
+        }
+        return String.valueOf(displayNumber);
+    }
+
     /**
      * Read the configuration file with built-in application which will be displayed in Content
      * list.
@@ -17,4 +17,15 @@ public class ExampleSwitches {
      * default. This is just for example.
      */
     public static final boolean ENABLE_SCALE_FEATURE = false;
+    /**
+     * Set this variable to true to store channels into TvProvider while scan is running, so they
+     * can be watched before the scan has finished. Channel numbers are fixed when scan finishes.
+     */
+    public static final boolean ENABLE_STREAMING_INSTALL = true;
+    /**
+     * Set this variable to true to store EPG programs without long description and fill it in
+     * later on a background thread, starting from channels closest to the live one. This keeps
+     * per-event MW calls out of EPG refresh.
+     */
+    public static final boolean ENABLE_LAZY_LONG_DESCRIPTION = true;
 }
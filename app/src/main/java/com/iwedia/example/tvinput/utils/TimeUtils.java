@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.utils;
+
+import com.iwedia.dtv.types.TimeDate;
+
+import java.util.TimeZone;
+
+/**
+ * Time conversions for EPG events without Calendar objects.
+ * <p>
+ * MW times are local wall-clock times. They are first converted to "wall millis", which are
+ * milliseconds since epoch as if local time was UTC, using plain civil date arithmetic. Wall
+ * millis are converted to real UTC millis by subtracting zone offset, which is cached in
+ * 15 minute buckets since all zone transitions happen on quarter hours.
+ */
+public class TimeUtils {
+
+    public static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    public static final long MILLIS_PER_DAY = 24 * 60 * MILLIS_PER_MINUTE;
+    /** Length of one offset cache bucket */
+    private static final long BUCKET_MILLIS = 15 * MILLIS_PER_MINUTE;
+    /** Number of offset cache entries, must be a power of two */
+    private static final int CACHE_SIZE = 4096;
+    /** Added to offset in minutes so it is stored as positive number */
+    private static final int OFFSET_BIAS = 2048;
+    /**
+     * Offset cache, every entry holds bucket number and zone offset in minutes, packed into one
+     * long as bucket * 4096 + offset + {@link #OFFSET_BIAS}
+     */
+    private static final long[] sOffsetCache = new long[CACHE_SIZE];
+    /** Zone for which offsets are cached */
+    private static TimeZone sTimeZone;
+
+    static {
+        setTimeZone(TimeZone.getDefault());
+    }
+
+    private TimeUtils() {
+    }
+
+    /**
+     * Sets zone used for conversions and clears the offset cache. Must be called when device
+     * time zone is changed.
+     *
+     * @param timeZone New time zone
+     */
+    public static synchronized void setTimeZone(TimeZone timeZone) {
+        sTimeZone = (TimeZone) timeZone.clone();
+        // Slot i is looked up only for buckets equal to i modulo cache size, so an entry holding
+        // bucket i + 1 never matches and marks the slot as empty
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            sOffsetCache[i] = (i + 1L) * CACHE_SIZE;
+        }
+    }
+
+    /**
+     * Switches to device time zone if it was changed since the last check. This allocates, so
+     * it should be called once per batch of conversions rather than for every event.
+     */
+    public static synchronized void checkTimeZone() {
+        TimeZone current = TimeZone.getDefault();
+        if (!current.getID().equals(sTimeZone.getID())) {
+            setTimeZone(current);
+        }
+    }
+
+    /**
+     * Converts MW time to UTC millis
+     *
+     * @param timeDate Local time
+     * @return Milliseconds since epoch
+     */
+    public static long toEpochMillis(TimeDate timeDate) {
+        return wallToEpochMillis(toWallMillis(timeDate));
+    }
+
+    /**
+     * Converts MW time to wall millis
+     *
+     * @param timeDate Local time
+     * @return Milliseconds since epoch as if local time was UTC
+     */
+    public static long toWallMillis(TimeDate timeDate) {
+        long days = daysFromCivil(timeDate.getYear(), timeDate.getMonth(), timeDate.getDay());
+        return days * MILLIS_PER_DAY
+                + ((timeDate.getHour() * 60L + timeDate.getMin()) * 60L + timeDate.getSec())
+                * 1000L;
+    }
+
+    /**
+     * Sets MW time to given wall millis
+     *
+     * @param timeDate   Time to change
+     * @param wallMillis Milliseconds since epoch as if local time was UTC
+     */
+    public static void setWallMillis(TimeDate timeDate, long wallMillis) {
+        long days = floorDiv(wallMillis, MILLIS_PER_DAY);
+        int secondOfDay = (int) ((wallMillis - days * MILLIS_PER_DAY) / 1000);
+        // Civil date is packed as year * 10000 + month * 100 + day
+        int date = civilFromDays(days);
+        timeDate.setYear(date / 10000);
+        timeDate.setMonth(date / 100 % 100);
+        timeDate.setDay(date % 100);
+        timeDate.setHour(secondOfDay / 3600);
+        timeDate.setMin(secondOfDay / 60 % 60);
+        timeDate.setSec(secondOfDay % 60);
+    }
+
+    /**
+     * Converts wall millis to UTC millis. Wall times skipped or repeated by a DST transition
+     * are resolved the same way as by {@link java.util.GregorianCalendar}: skipped times are
+     * moved forward by the transition, repeated times resolve to their standard time occurrence.
+     *
+     * @param wallMillis Milliseconds since epoch as if local time was UTC
+     * @return Milliseconds since epoch
+     */
+    public static long wallToEpochMillis(long wallMillis) {
+        return wallMillis - getWallOffset(wallMillis);
+    }
+
+    /**
+     * Gets zone offset valid at given wall time
+     *
+     * @param wallMillis Milliseconds since epoch as if local time was UTC
+     * @return Offset in milliseconds
+     */
+    public static synchronized long getWallOffset(long wallMillis) {
+        long bucket = floorDiv(wallMillis, BUCKET_MILLIS);
+        int slot = (int) (bucket & (CACHE_SIZE - 1));
+        long entry = sOffsetCache[slot];
+        if (floorDiv(entry, CACHE_SIZE) == bucket) {
+            return (entry - bucket * CACHE_SIZE - OFFSET_BIAS) * MILLIS_PER_MINUTE;
+        }
+        long bucketStart = bucket * BUCKET_MILLIS;
+        int offset = sTimeZone.getOffset(bucketStart - sTimeZone.getRawOffset());
+        int check = sTimeZone.getOffset(bucketStart - offset);
+        if (check != offset) {
+            // Wall time skipped by transition, it is moved forward by using the earlier offset
+            offset = check;
+        }
+        sOffsetCache[slot] = bucket * CACHE_SIZE + offset / MILLIS_PER_MINUTE + OFFSET_BIAS;
+        return offset;
+    }
+
+    /**
+     * Number of days since 1970-01-01 of a civil date in proleptic Gregorian calendar
+     *
+     * @param year  Year
+     * @param month Month, 1 - 12
+     * @param day   Day of month, 1 - 31
+     * @return Days since epoch, negative for earlier dates
+     */
+    public static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    /**
+     * Civil date of a day since 1970-01-01, inverse of {@link #daysFromCivil(int, int, int)}
+     *
+     * @param days Days since epoch
+     * @return Date packed as year * 10000 + month * 100 + day
+     */
+    public static int civilFromDays(long days) {
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    private static long floorDiv(long value, long divisor) {
+        long quotient = value / divisor;
+        if ((value % divisor != 0) && ((value < 0) != (divisor < 0))) {
+            quotient--;
+        }
+        return quotient;
+    }
+}
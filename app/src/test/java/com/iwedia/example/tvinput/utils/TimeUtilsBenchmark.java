@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.iwedia.dtv.types.TimeDate;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Times EPG event normalization per million events: moving start and end time by the stream
+ * day difference and converting them to UTC millis. Calendar path is the one EpgManager and
+ * EpgRunnable used before {@link TimeUtils}. Results are printed, timing is not asserted.
+ */
+public class TimeUtilsBenchmark {
+
+    /** Number of normalized events per round */
+    private static final int EVENTS = 1000000;
+    /** Rounds run before the measured one, so both paths are compiled */
+    private static final int WARMUP_ROUNDS = 2;
+    /** Number of distinct event start times */
+    private static final int START_TIMES = 1024;
+    /** Day difference between device and demo stream */
+    private static final int DAY_DIFFERENCE = 1200;
+    /** Events start every 37 minutes across a year, so DST transitions are included */
+    private static final long START_STEP = 37 * TimeUtils.MILLIS_PER_MINUTE;
+    private static final long DURATION = 45 * TimeUtils.MILLIS_PER_MINUTE;
+
+    private final TimeDate[] mStartTimes = new TimeDate[START_TIMES];
+    private final TimeDate[] mEndTimes = new TimeDate[START_TIMES];
+    private final TimeDate mStart = new TimeDate(0, 0, 0, 1, 1, 1970);
+    private final TimeDate mEnd = new TimeDate(0, 0, 0, 1, 1, 1970);
+
+    @After
+    public void restoreTimeZone() {
+        TimeUtils.setTimeZone(TimeZone.getDefault());
+    }
+
+    @Test
+    public void normalizeMillionEvents() {
+        TimeUtils.setTimeZone(TimeZone.getDefault());
+        long first = TimeUtils.daysFromCivil(2012, 1, 1) * TimeUtils.MILLIS_PER_DAY;
+        for (int i = 0; i < START_TIMES; i++) {
+            long start = first + i * START_STEP * 13;
+            mStartTimes[i] = new TimeDate(0, 0, 0, 1, 1, 1970);
+            mEndTimes[i] = new TimeDate(0, 0, 0, 1, 1, 1970);
+            TimeUtils.setWallMillis(mStartTimes[i], start);
+            TimeUtils.setWallMillis(mEndTimes[i], start + DURATION);
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runCalendar();
+            runTimeUtils();
+        }
+        long start = System.nanoTime();
+        long calendarSum = runCalendar();
+        long calendarNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        long timeUtilsSum = runTimeUtils();
+        long timeUtilsNanos = System.nanoTime() - start;
+        System.out.println("[normalizeMillionEvents][calendar: " + calendarNanos / 1000000
+                + " ms, " + calendarNanos / EVENTS + " ns/event][time utils: "
+                + timeUtilsNanos / 1000000 + " ms, " + timeUtilsNanos / EVENTS
+                + " ns/event][zone: " + TimeZone.getDefault().getID() + "]");
+        // Both paths must produce the same UTC times
+        assertEquals(calendarSum, timeUtilsSum);
+    }
+
+    private long runCalendar() {
+        long sum = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            copy(mStartTimes[i % START_TIMES], mStart);
+            copy(mEndTimes[i % START_TIMES], mEnd);
+            // EpgManager.changeEventTimes
+            Calendar startTime = Calendar.getInstance(TimeZone.getDefault());
+            Calendar endTime = Calendar.getInstance(TimeZone.getDefault());
+            startTime.setTimeInMillis(toCalendar(mStart).getTimeInMillis());
+            endTime.setTimeInMillis(toCalendar(mEnd).getTimeInMillis());
+            startTime.add(Calendar.DATE, DAY_DIFFERENCE);
+            endTime.add(Calendar.DATE, DAY_DIFFERENCE);
+            setEventDate(mStart, startTime);
+            setEventDate(mEnd, endTime);
+            // EpgRunnable.makeProgramContentValues
+            sum += toCalendar(mStart).getTimeInMillis();
+            sum += toCalendar(mEnd).getTimeInMillis();
+        }
+        return sum;
+    }
+
+    private long runTimeUtils() {
+        long sum = 0;
+        for (int i = 0; i < EVENTS; i++) {
+            copy(mStartTimes[i % START_TIMES], mStart);
+            copy(mEndTimes[i % START_TIMES], mEnd);
+            shiftDays(mStart, DAY_DIFFERENCE);
+            shiftDays(mEnd, DAY_DIFFERENCE);
+            sum += TimeUtils.toEpochMillis(mStart);
+            sum += TimeUtils.toEpochMillis(mEnd);
+        }
+        return sum;
+    }
+
+    /**
+     * Same as EpgManager.shiftDays
+     */
+    private static void shiftDays(TimeDate timeDate, int days) {
+        long wallMillis = TimeUtils.toWallMillis(timeDate) + days * TimeUtils.MILLIS_PER_DAY;
+        TimeUtils.setWallMillis(timeDate, wallMillis - wallMillis % TimeUtils.MILLIS_PER_MINUTE);
+    }
+
+    /**
+     * Calendar of MW time in default zone, as returned by {@link TimeDate#getCalendar()}
+     */
+    private static Calendar toCalendar(TimeDate timeDate) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getDefault());
+        calendar.clear();
+        calendar.set(timeDate.getYear(), timeDate.getMonth() - 1, timeDate.getDay(),
+                timeDate.getHour(), timeDate.getMin(), timeDate.getSec());
+        return calendar;
+    }
+
+    /**
+     * Same as the former EpgManager.setEventDate
+     */
+    private static void setEventDate(TimeDate date, Calendar calendar) {
+        date.setSec(0);
+        date.setMin(calendar.get(Calendar.MINUTE));
+        date.setHour(calendar.get(Calendar.HOUR_OF_DAY));
+        date.setDay(calendar.get(Calendar.DAY_OF_MONTH));
+        date.setMonth(calendar.get(Calendar.MONTH) + 1);
+        date.setYear(calendar.get(Calendar.YEAR));
+    }
+
+    private static void copy(TimeDate from, TimeDate to) {
+        to.setSec(from.getSec());
+        to.setMin(from.getMin());
+        to.setHour(from.getHour());
+        to.setDay(from.getDay());
+        to.setMonth(from.getMonth());
+        to.setYear(from.getYear());
+    }
+}
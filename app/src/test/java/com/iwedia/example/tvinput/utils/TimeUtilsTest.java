@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 iWedia S.A. Licensed under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0 Unless required by applicable law
+ * or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package com.iwedia.example.tvinput.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.iwedia.dtv.types.TimeDate;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Checks {@link TimeUtils} conversions against {@link GregorianCalendar}, minute by minute
+ * around DST transitions, including wall times skipped and repeated by them.
+ */
+public class TimeUtilsTest {
+
+    @After
+    public void restoreTimeZone() {
+        TimeUtils.setTimeZone(TimeZone.getDefault());
+    }
+
+    @Test
+    public void springForwardEurope() {
+        checkAroundDay("Europe/Belgrade", 2015, 3, 29);
+    }
+
+    @Test
+    public void fallBackEurope() {
+        checkAroundDay("Europe/Belgrade", 2015, 10, 25);
+    }
+
+    @Test
+    public void springForwardAmerica() {
+        checkAroundDay("America/New_York", 2015, 3, 8);
+    }
+
+    @Test
+    public void fallBackAmerica() {
+        checkAroundDay("America/New_York", 2015, 11, 1);
+    }
+
+    /** Transition at midnight, skipped wall times belong to the previous day */
+    @Test
+    public void transitionsAtMidnight() {
+        checkAroundDay("America/Sao_Paulo", 2015, 10, 18);
+        checkAroundDay("America/Sao_Paulo", 2016, 2, 21);
+    }
+
+    /** Clock is moved by half an hour */
+    @Test
+    public void halfHourTransitions() {
+        checkAroundDay("Australia/Lord_Howe", 2015, 4, 5);
+        checkAroundDay("Australia/Lord_Howe", 2015, 10, 4);
+    }
+
+    /** Wall times just before epoch fall into the last slots of offset cache */
+    @Test
+    public void beforeEpoch() {
+        checkAroundDay("Europe/Belgrade", 1970, 1, 1);
+    }
+
+    @Test
+    public void civilDaysMatchCalendar() {
+        GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(1900, Calendar.JANUARY, 1);
+        long days = TimeUtils.daysFromCivil(1900, 1, 1);
+        while (calendar.get(Calendar.YEAR) < 2100) {
+            int year = calendar.get(Calendar.YEAR);
+            int month = calendar.get(Calendar.MONTH) + 1;
+            int day = calendar.get(Calendar.DAY_OF_MONTH);
+            assertEquals(calendar.getTimeInMillis(), days * TimeUtils.MILLIS_PER_DAY);
+            assertEquals(days, TimeUtils.daysFromCivil(year, month, day));
+            assertEquals(year * 10000 + month * 100 + day, TimeUtils.civilFromDays(days));
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            days++;
+        }
+    }
+
+    /**
+     * Compares every minute of the day before, the given day and the day after
+     */
+    private static void checkAroundDay(String zoneId, int year, int month, int day) {
+        TimeZone zone = TimeZone.getTimeZone(zoneId);
+        TimeUtils.setTimeZone(zone);
+        GregorianCalendar calendar = new GregorianCalendar(zone);
+        long firstMinute = (TimeUtils.daysFromCivil(year, month, day) - 1) * 24 * 60;
+        TimeDate timeDate = new TimeDate(0, 0, 0, 1, 1, 1970);
+        for (long minute = firstMinute; minute < firstMinute + 3 * 24 * 60; minute++) {
+            TimeUtils.setWallMillis(timeDate, minute * TimeUtils.MILLIS_PER_MINUTE);
+            calendar.clear();
+            calendar.set(timeDate.getYear(), timeDate.getMonth() - 1, timeDate.getDay(),
+                    timeDate.getHour(), timeDate.getMin(), timeDate.getSec());
+            String message = zoneId + " " + timeDate.getYear() + "-" + timeDate.getMonth() + "-"
+                    + timeDate.getDay() + " " + timeDate.getHour() + ":" + timeDate.getMin();
+            assertEquals(message, calendar.getTimeInMillis(), TimeUtils.toEpochMillis(timeDate));
+        }
+    }
+}